@@ -0,0 +1,246 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+package ${package};
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the generated {@link Services.Algorithms} implementations for
+ * a range of inputs. The {@code call*} benchmarks pass a number through
+ * an identity {@link Services.Computation} to isolate the cost of crossing
+ * the language boundary. Must run on GraalVM with the languages installed.
+ * The inputs stay below 171, as bigger factorials overflow the double
+ * precision numbers of JavaScript and R to infinity.
+ * Run with {@code mvn -Pjmh test-compile exec:exec@jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dfactorial.minCheckpoint=2147483647")
+public class AlgorithmsBenchmark {
+    @Param({ "5", "50", "170" })
+    int n;
+
+    private Engine engine;
+    private Context context;
+    private Services.Algorithms algorithms;
+    private Services.Computation javaIdentity;
+#if ($algorithmJS.equals("true"))
+    private Services.Computation jsIdentity;
+#end
+#if ($algorithmRuby.equals("true"))
+    private Services.Computation rubyIdentity;
+#end
+#if ($algorithmR.equals("true"))
+    private Services.Computation rIdentity;
+#end
+
+    @Setup
+    public void initialize() {
+        engine = Engine.create();
+        context = Context.newBuilder().engine(engine).allowAllAccess(true).build();
+        ContextGlobal global = new ContextGlobal(context);
+        Services services = new Services(null, global, null);
+        algorithms = services.new AlgorithmsImpl();
+        javaIdentity = (value) -> value;
+#if ($algorithmJS.equals("true"))
+        jsIdentity = global.cast(global.eval("text/javascript", "(function(x) { return x; })"), (Services.Computation) null);
+#end
+#if ($algorithmRuby.equals("true"))
+        rubyIdentity = global.cast(global.eval("application/x-ruby", "proc { |x| x }"), (Services.Computation) null);
+#end
+#if ($algorithmR.equals("true"))
+        rIdentity = global.cast(global.eval("text/x-r", "function(x) x"), (Services.Computation) null);
+#end
+    }
+
+    @TearDown
+    public void close() {
+        context.close();
+        engine.close();
+    }
+
+#if ($algorithmJava.equals("true"))
+    @Benchmark
+    public Object java() {
+        return algorithms.java(n);
+    }
+
+#end
+#if ($algorithmJS.equals("true"))
+    @Benchmark
+    public Object js() {
+        return algorithms.js(n);
+    }
+
+#end
+#if ($algorithmRuby.equals("true"))
+    @Benchmark
+    public Object ruby() {
+        return algorithms.ruby(n);
+    }
+
+#end
+#if ($algorithmR.equals("true"))
+    @Benchmark
+    public Object r() {
+        return algorithms.r(n);
+    }
+
+#end
+    @Benchmark
+    public Object callJava() {
+        return javaIdentity.compute(n);
+    }
+#if ($algorithmJS.equals("true"))
+
+    @Benchmark
+    public Object callJs() {
+        return jsIdentity.compute(n);
+    }
+#end
+#if ($algorithmRuby.equals("true"))
+
+    @Benchmark
+    public Object callRuby() {
+        return rubyIdentity.compute(n);
+    }
+#end
+#if ($algorithmR.equals("true"))
+
+    @Benchmark
+    public Object callR() {
+        return rIdentity.compute(n);
+    }
+#end
+
+    /**
+     * Services.Global backed by a polyglot context instead of node.js.
+     * Evaluating the same code again reuses the same {@link Source}, so
+     * contexts of one {@link Engine} share its parsed and compiled form.
+     */
+    static final class ContextGlobal implements Services.Global, Services.Polyglot {
+        private static final Map<String, Source> SOURCES = new ConcurrentHashMap<>();
+        private final Context context;
+
+        ContextGlobal(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public Services.Polyglot Polyglot() {
+            return this;
+        }
+
+        @Override
+        public void quit() {
+            context.close();
+        }
+
+        @Override
+        public Services.Http cast(Object value, Services.Http prototype) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Services.Server cast(Object value, Services.Server prototype) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Services.Computation cast(Object value, Services.Computation prototype) {
+            return ((Value) value).as(Services.Computation.class);
+        }
+
+        @Override
+        public void defer(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public Object buffer(byte[] bytes) {
+            return bytes;
+        }
+
+        @Override
+        public void configure(Services.Server server, Services.ServerOptions options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object eval(String mimeType, String code) {
+            return context.eval(source(mimeType, code));
+        }
+
+        static Source source(String mimeType, String code) {
+            return SOURCES.computeIfAbsent(mimeType + '\n' + code, (key) ->
+                Source.newBuilder(Source.findLanguage(mimeType), code, "benchmark").
+                    mimeType(mimeType).
+                    buildLiteral()
+            );
+        }
+
+        @Override
+        public void export(String name, Object obj) {
+            context.getPolyglotBindings().putMember(name, obj);
+        }
+    }
+}
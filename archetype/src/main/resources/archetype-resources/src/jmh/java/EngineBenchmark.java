@@ -0,0 +1,118 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+package ${package};
+
+import java.util.concurrent.TimeUnit;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a fresh context, like one created for a new thread, takes
+ * to evaluate the guest factorials and call each of them {@code calls}
+ * times. With {@code shared} engine the contexts reuse the code parsed and
+ * compiled by the previous ones, otherwise each starts from scratch.
+ * Add {@code -prof gc} to see the memory allocated per context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({ "true", "false" })
+    boolean shared;
+
+    @Param({ "1000" })
+    int calls;
+
+    private Engine engine;
+
+    @Setup
+    public void initialize() {
+        engine = shared ? Engine.create() : null;
+    }
+
+    @TearDown
+    public void close() {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public Object warmUpContext() {
+        Context.Builder builder = Context.newBuilder().allowAllAccess(true);
+        if (engine != null) {
+            builder.engine(engine);
+        }
+        try (Context context = builder.build()) {
+            Services services = new Services(null, new AlgorithmsBenchmark.ContextGlobal(context), null);
+            Services.Algorithms algorithms = services.new AlgorithmsImpl();
+            Object last = null;
+            for (int i = 0; i < calls; i++) {
+                final int n = 10 + i % 10;
+#if ($algorithmJS.equals("true"))
+                last = algorithms.js(n);
+#end
+#if ($algorithmRuby.equals("true"))
+                last = algorithms.ruby(n);
+#end
+#if ($algorithmR.equals("true"))
+                last = algorithms.r(n);
+#end
+            }
+            return last;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+/*
+ * Measures many short requests sent by persistent clients. Each client
+ * sends its requests one after another, first over a kept-alive connection,
+ * then opening a new connection for every request. Start the server, then
+ * run as:
+ *
+ *   node src/jmh/js/keepalive_benchmark.js [clients] [seconds] [path]
+ *
+ * Compare the server settings, e.g. -Dserver.keepAliveTimeout=1000 makes
+ * clients that pause longer than a second reconnect. Set KEEPALIVE_PAUSE
+ * to the milliseconds each client waits between requests.
+ */
+
+const http = require('http');
+
+const clients = Number.parseInt(process.argv[2]) || 64;
+const seconds = Number.parseInt(process.argv[3]) || 10;
+const path = process.argv[4] || '/js/5';
+const pause = Number.parseInt(process.env.KEEPALIVE_PAUSE) || 0;
+
+function request(agent) {
+    return new Promise((resolve, reject) => {
+        http.get({ host : 'localhost', port : 8080, path, agent }, (response) => {
+            response.resume();
+            response.on('end', () => resolve(response.statusCode));
+        }).on('error', reject);
+    });
+}
+
+async function client(agent, until, latencies) {
+    var errors = 0;
+    while (Date.now() < until) {
+        const start = process.hrtime();
+        try {
+            await request(agent);
+            const took = process.hrtime(start);
+            latencies.push(took[0] * 1e3 + took[1] / 1e6);
+        } catch (error) {
+            errors++;
+        }
+        if (pause > 0) {
+            await new Promise((resolve) => setTimeout(resolve, pause));
+        }
+    }
+    return errors;
+}
+
+async function measure(keepAlive) {
+    const agent = new http.Agent({ keepAlive, maxSockets : clients });
+    var connections = 0;
+    const createConnection = agent.createConnection;
+    agent.createConnection = function() {
+        connections++;
+        return createConnection.apply(this, arguments);
+    };
+    const latencies = [];
+    const until = Date.now() + seconds * 1000;
+    const running = [];
+    for (var i = 0; i < clients; i++) {
+        running.push(client(agent, until, latencies));
+    }
+    const errors = (await Promise.all(running)).reduce((sum, e) => sum + e, 0);
+    agent.destroy();
+    latencies.sort((a, b) => a - b);
+    const percentile = (p) => latencies.length === 0 ? NaN : latencies[Math.min(latencies.length - 1, Math.floor(latencies.length * p))];
+    console.log((keepAlive ? 'keep-alive' : 'close     ') + ': ' +
+        (latencies.length / seconds).toFixed(0).padStart(7) + ' requests/s, ' +
+        'p50 ' + percentile(0.5).toFixed(2) + ' ms, p99 ' + percentile(0.99).toFixed(2) + ' ms, ' +
+        connections + ' connections, ' + errors + ' errors');
+}
+
+(async function() {
+    await measure(true);
+    await measure(false);
+})();
@@ -0,0 +1,121 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+/*
+ * Measures how long the server takes to start and how much memory it uses.
+ * Starts the given command a few times, waits until /ready answers 200 and
+ * reads the peak resident set size of the process from /proc (Linux only).
+ * Compare the node.js launcher with the native image as:
+ *
+ *   node src/jmh/js/startup_benchmark.js $graalvm/bin/node --experimental-worker \
+ *       --polyglot --jvm --jvm.classpath target/classes src/main/js/launcher.js
+ *   node src/jmh/js/startup_benchmark.js target/<artifactId>
+ */
+
+const { spawn } = require('child_process');
+const fs = require('fs');
+const http = require('http');
+
+const command = process.argv.slice(2);
+const runs = Number.parseInt(process.env.STARTUP_RUNS) || 5;
+
+function get(path) {
+    return new Promise((resolve) => {
+        http.get({ host : 'localhost', port : 8080, path }, (response) => {
+            response.resume();
+            resolve(response.statusCode);
+        }).on('error', () => resolve(0));
+    });
+}
+
+function memory(pid, field) {
+    try {
+        const status = fs.readFileSync('/proc/' + pid + '/status', 'utf8');
+        const match = new RegExp(field + ':\\s+(\\d+) kB').exec(status);
+        return match ? Number(match[1]) / 1024 : NaN;
+    } catch (error) {
+        return NaN;
+    }
+}
+
+async function measure() {
+    const start = process.hrtime.bigint();
+    const server = spawn(command[0], command.slice(1), { stdio : 'ignore' });
+    const exited = new Promise((resolve) => server.on('exit', resolve));
+    var listening = NaN;
+    for (;;) {
+        const status = await get('/ready');
+        const now = Number(process.hrtime.bigint() - start) / 1e6;
+        if (status !== 0 && Number.isNaN(listening)) {
+            listening = now;
+        }
+        if (status === 200) {
+            const rss = memory(server.pid, 'VmHWM');
+            await get('/quit');
+            server.kill();
+            await exited;
+            return { listening, ready : now, rss };
+        }
+        if (server.exitCode !== null) {
+            throw new Error('Server exited with code ' + server.exitCode);
+        }
+        await new Promise((resolve) => setTimeout(resolve, 5));
+    }
+}
+
+function median(values) {
+    const sorted = values.slice().sort((a, b) => a - b);
+    return sorted[sorted.length >> 1];
+}
+
+(async function() {
+    if (command.length === 0) {
+        console.error('Usage: node startup_benchmark.js <command to start the server>');
+        process.exit(2);
+    }
+    const results = [];
+    for (var i = 0; i < runs; i++) {
+        results.push(await measure());
+    }
+    console.log('listening: ' + median(results.map((r) => r.listening)).toFixed(0) + ' ms, ' +
+        'ready: ' + median(results.map((r) => r.ready)).toFixed(0) + ' ms, ' +
+        'peak RSS: ' + median(results.map((r) => r.rss)).toFixed(0) + ' MB ' +
+        '(median of ' + runs + ' runs)');
+})();
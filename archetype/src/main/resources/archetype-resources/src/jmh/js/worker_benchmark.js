@@ -0,0 +1,79 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+/*
+ * Measures throughput of NodePolyglotWorker for different batch sizes.
+ * Each round submits tiny Java calls and waits for all their results.
+ * Run after mvn package as:
+ *
+ *   $graalvm/bin/node --experimental-worker --jvm \
+ *       --jvm.classpath target/classes src/jmh/js/worker_benchmark.js
+ */
+
+const Worker = require('../../main/js/polyglot_worker.js').NodePolyglotWorker;
+
+const calls = Number.parseInt(process.argv[2]) || 20000;
+const rounds = 5;
+const target = Java.type('java.lang.Math');
+
+async function measure(batchSize) {
+    const worker = new Worker({ batchSize });
+    var best = Infinity;
+    for (var round = 0; round < rounds; round++) {
+        const start = process.hrtime.bigint();
+        const results = [];
+        for (var i = 0; i < calls; i++) {
+            results.push(worker.submit(target, { method : 'abs', args : [-i] }));
+        }
+        await Promise.all(results);
+        const took = Number(process.hrtime.bigint() - start) / 1e6;
+        best = Math.min(best, took);
+    }
+    worker.terminate();
+    console.log('batch ' + String(batchSize).padStart(4) + ': ' +
+        (calls / best * 1000).toFixed(0).padStart(8) + ' calls/s, ' +
+        (best * 1000 / calls).toFixed(2) + ' us/call');
+}
+
+(async function() {
+    for (const batchSize of [ 0, 8, 32, 128, 512 ]) {
+        await measure(batchSize);
+    }
+})();
@@ -0,0 +1,319 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+package ${package};
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the Java server without node.js, so it can be compiled by GraalVM
+ * {@code native-image}. Requests are accepted by the JDK HTTP server and
+ * handled one by one on a single event loop thread, just like node.js
+ * would do, by the same {@link Services.Router}. Guest languages aren't
+ * part of the image, only the Java algorithm is available.
+ */
+public final class NativeMain {
+    private final ExecutorService loop = Executors.newSingleThreadExecutor((task) -> new Thread(task, "Event loop"));
+
+    private NativeMain() {
+    }
+
+    public static void main(String... args) throws Exception {
+        if (System.getProperty("warmup.languages") == null) {
+            System.setProperty("warmup.languages", "java");
+        }
+        final NativeMain main = new NativeMain();
+        final Services services = new Services(main::require, main.new NativeGlobal(), main.worker());
+        main.loop.submit(() -> services.postInit(null)).get();
+    }
+
+    /** Runs the task on the event loop thread. */
+    private void post(Runnable task) {
+        loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    private Object require(String module) {
+        if (!"http".equals(module)) {
+            throw new IllegalArgumentException("Unknown module: " + module);
+        }
+        return (Services.Http) (handler) -> new Services.Server() {
+            @Override
+            public void listen(int port) {
+                listen(port, 0);
+            }
+
+            @Override
+            public void listen(int port, int backlog) {
+                try {
+                    final HttpServer server = HttpServer.create(new InetSocketAddress(port), backlog);
+                    server.createContext("/", (exchange) -> post(() -> {
+                        final Response out = new Response(exchange);
+                        try {
+                            handler.call(new Request(exchange), out);
+                        } catch (RuntimeException ex) {
+                            out.writeHead(500);
+                            out.end(ex + "\n");
+                            throw ex;
+                        }
+                    }));
+                    server.start();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+    }
+
+#if ($algorithmJava.equals("true"))
+    /** Hands completions of the executor over to the event loop. */
+    private Services.Worker worker() {
+        final Services.ExecutorWorker worker = Services.ExecutorWorker.create();
+        final Thread pump = new Thread(() -> {
+            try {
+                for (Runnable[] tasks; (tasks = worker.takeCompletions(256)) != null;) {
+                    final Runnable[] batch = tasks;
+                    post(() -> {
+                        for (Runnable task : batch) {
+                            try {
+                                task.run();
+                            } catch (RuntimeException ex) {
+                                ex.printStackTrace();
+                            }
+                        }
+                    });
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Completion pump");
+        pump.setDaemon(true);
+        pump.start();
+        return worker;
+    }
+#else
+    private Services.Worker worker() {
+        return new Services.Worker() {
+            @Override
+            public <T> void submit(Supplier<T> background, Consumer<T> finish) {
+                final T result = background.get();
+                post(() -> finish.accept(result));
+            }
+        };
+    }
+#end
+
+    private final class NativeGlobal implements Services.Global {
+        @Override
+        public Services.Polyglot Polyglot() {
+            throw new UnsupportedOperationException("Guest languages aren't available in the native image, use the node.js launcher");
+        }
+
+        @Override
+        public void quit() {
+            System.exit(0);
+        }
+
+        @Override
+        public Services.Http cast(Object value, Services.Http prototype) {
+            return (Services.Http) value;
+        }
+
+        @Override
+        public Services.Server cast(Object value, Services.Server prototype) {
+            return (Services.Server) value;
+        }
+
+        @Override
+        public Services.Computation cast(Object value, Services.Computation prototype) {
+            return (Services.Computation) value;
+        }
+
+        @Override
+        public void defer(Runnable task) {
+            post(task);
+        }
+
+        @Override
+        public Object buffer(byte[] bytes) {
+            return bytes;
+        }
+
+        /**
+         * The JDK HTTP server reads its settings from system properties once,
+         * when the first server is created, so they have to be set before.
+         * Explicitly set properties win.
+         */
+        @Override
+        public void configure(Services.Server server, Services.ServerOptions options) {
+            setDefault("sun.net.httpserver.idleInterval", Math.max(1, options.keepAliveTimeout() / 1000));
+            setDefault("sun.net.httpserver.maxReqTime", Math.max(1, options.headersTimeout() / 1000));
+            setDefault("sun.net.httpserver.maxReqHeaders", options.maxHeadersCount());
+            setDefault("sun.net.httpserver.nodelay", options.noDelay());
+            if (options.maxConnections() > 0) {
+                setDefault("sun.net.httpserver.maxConnections", options.maxConnections());
+            }
+        }
+
+        private void setDefault(String name, Object value) {
+            if (System.getProperty(name) == null) {
+                System.setProperty(name, String.valueOf(value));
+            }
+        }
+    }
+
+    private static final class Request implements Services.IncommingMessage {
+        private final HttpExchange exchange;
+
+        Request(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public String url() {
+            return exchange.getRequestURI().toString();
+        }
+
+        @Override
+        public Map<String, Object> headers() {
+            final Map<String, Object> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> e : exchange.getRequestHeaders().entrySet()) {
+                headers.put(e.getKey().toLowerCase(Locale.ROOT), String.join(", ", e.getValue()));
+            }
+            return headers;
+        }
+    }
+
+    /**
+     * Response written straight to the connection. Writes block the event
+     * loop until the client takes the data, so {@code drain} is never needed.
+     * A client going away is noticed only by a failed write.
+     */
+    private static final class Response implements Services.ServerResponse {
+        private final HttpExchange exchange;
+        private final Map<String, List<Runnable>> listeners = new HashMap<>();
+        private int status = 200;
+        private OutputStream body;
+        private boolean closed;
+
+        Response(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void writeHead(int statusCode) {
+            status = statusCode;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            exchange.getResponseHeaders().set(name, value);
+        }
+
+        @Override
+        public boolean write(String chunk) {
+            send(chunk.getBytes(StandardCharsets.UTF_8), 0);
+            return true;
+        }
+
+        @Override
+        public void once(String event, Runnable listener) {
+            listeners.computeIfAbsent(event, (k) -> new ArrayList<>()).add(listener);
+        }
+
+        @Override
+        public void end(String text) {
+            end((Object) text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void end(Object data) {
+            final byte[] bytes = data instanceof byte[] ? (byte[]) data : String.valueOf(data).getBytes(StandardCharsets.UTF_8);
+            send(bytes, bytes.length == 0 ? -1 : bytes.length);
+            exchange.close();
+            emit("finish");
+            emit("close");
+        }
+
+        private void send(byte[] bytes, long length) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (body == null) {
+                    exchange.sendResponseHeaders(status, length);
+                    body = exchange.getResponseBody();
+                }
+                body.write(bytes);
+            } catch (IOException ex) {
+                closed = true;
+                exchange.close();
+                emit("close");
+            }
+        }
+
+        private void emit(String event) {
+            final List<Runnable> registered = listeners.remove(event);
+            if (registered != null) {
+                registered.forEach(Runnable::run);
+            }
+        }
+    }
+}
@@ -41,9 +41,37 @@
 package ${package};
 
 #if ($algorithmJava.equals("true"))
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
 #end
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 public class Services {
@@ -55,12 +83,34 @@ public class Services {
     private final Worker worker;
     private final Require require;
     private final Global global;
+    private final BoundaryProfiler profiler;
+#if ($algorithmJava.equals("true"))
+    private final Factorial factorials = new Factorial(
+        Integer.getInteger("factorial.checkpoints", 16),
+        Integer.getInteger("factorial.minCheckpoint", 256),
+        Integer.getInteger("factorial.parallelThreshold", 20000)
+    );
+    private static final int CHUNK = Integer.getInteger("response.chunk", 16384);
+#end
+
+    private final Router router = new Router();
+    private final Metrics metrics = new Metrics();
+#if ($algorithmJava.equals("true"))
+    private final RouteMetrics javaMetrics = metrics.route("java");
+#end
+    private volatile boolean ready;
 
     Algorithms algorithms;
 
     public Services(Require require, Global global, Worker worker) {
         this.require = require;
-        this.global = global;
+        if (Boolean.getBoolean("profile.polyglot")) {
+            this.profiler = new BoundaryProfiler();
+            this.global = profiler.wrap(global);
+        } else {
+            this.profiler = null;
+            this.global = global;
+        }
         this.worker = worker;
         INSTANCE = this;
     }
@@ -77,50 +127,289 @@ public class Services {
             throw new NullPointerException();
 #end
         }
-        this.algorithms = newAlgorithms;
+        if (profiler != null) {
+            newAlgorithms = profiler.wrap(newAlgorithms);
+        }
+        this.algorithms = new CachingAlgorithms(newAlgorithms);
+        for (String name : Arrays.asList("java", "ruby", "js", "r")) {
+            final int max = Integer.getInteger("limit." + name, 0);
+            if (max > 0) {
+                router.limit("/" + name + "/", max, metrics.route(name)::reject);
+            }
+        }
+        router.registerExact("/cache", (in, out, url, tail) -> {
+            out.end(((CachingAlgorithms) algorithms).stats());
+        });
+        router.registerExact("/metrics", (in, out, url, tail) -> {
+            out.setHeader("Content-Type", "text/plain; version=0.0.4");
+            out.end(metrics.prometheus());
+        });
+        router.registerExact("/profile", (in, out, url, tail) -> {
+            final String profile = profile();
+            out.end(profile != null ? profile : "Start with -Dprofile.polyglot=true to profile polyglot calls\n");
+        });
+        router.registerExact("/ready", (in, out, url, tail) -> {
+            if (ready) {
+                out.end("ready\n");
+            } else {
+                out.writeHead(503);
+                out.end("warming up\n");
+            }
+        });
 #if (!$serverCode.equals("js"))
-        final Object rawHttp = require.require("http");
-        Http http = global.cast(rawHttp, (Http) null);
-        Server server = http.createServer((in, out) -> {
-            final String url = in.url();
-            if (url.equals("/quit")) {
-                out.end("Quiting...\n");
-                global.quit();
+        router.registerExact("/quit", (in, out, url, tail) -> {
+            out.end("Quiting...\n");
+            final String profile = profile();
+            if (profile != null) {
+                System.err.print(profile);
             }
+            global.quit();
+        });
 #if ($algorithmJava.equals("true"))
-            if (url.startsWith("/java/")) {
+        router.register("/java/", (in, out, url, tail) -> {
+            final long start = javaMetrics.start();
+            final int n = Router.parseInt(url, tail);
+            final Format format = Format.negotiate(in);
+            final Cancellation cancellation = Cancellation.forRequest();
+            out.once("close", cancellation::cancel);
+            try {
                 worker.submit(() -> {
-                    final BigInteger result = algorithms.java(Integer.parseInt(url.substring(6)));
+                    final long computing = javaMetrics.queued(start);
+                    final BigInteger result = algorithms.java(n);
+                    javaMetrics.polyglot(computing);
                     return result;
                 }, (result) -> {
-                    out.end(result + "\n");
-                });
-                return;
+                    if (result == null) {
+                        javaMetrics.end(start);
+                        if (cancellation.isTimedOut()) {
+                            Router.timedOut(out);
+                        }
+                        return;
+                    }
+                    final long writing = javaMetrics.now();
+                    if (format == Format.TEXT) {
+                        writeChunks(worker, new DecimalChunks(result, CHUNK), out, () -> javaMetrics.end(start, writing));
+                    } else {
+                        send(out, format, result);
+                        javaMetrics.end(start, writing);
+                    }
+                }, (ex) -> {
+                    ex.printStackTrace();
+                    javaMetrics.end(start);
+                    Router.failed(out, ex);
+                }, cancellation);
+            } catch (RejectedExecutionException ex) {
+                javaMetrics.reject();
+                Router.busy(out);
             }
+        });
 #end
 #if ($algorithmRuby.equals("true"))
-            if (url.startsWith("/ruby/")) {
-                out.end(algorithms.ruby(Integer.parseInt(url.substring(6))) + "\n");
-                return;
-            }
+        final RouteMetrics rubyMetrics = metrics.route("ruby");
+        router.register("/ruby/", (in, out, url, tail) -> {
+            final long start = rubyMetrics.start();
+            final String result = algorithms.ruby(Router.parseInt(url, tail));
+            final long writing = rubyMetrics.polyglot(start);
+            out.end(result + "\n");
+            rubyMetrics.end(start, writing);
+        });
 #end
 #if ($algorithmJS.equals("true"))
-            if (url.startsWith("/js/")) {
-                out.end(algorithms.js(Integer.parseInt(url.substring(4))) + "\n");
-                return;
+        final RouteMetrics jsMetrics = metrics.route("js");
+        router.register("/js/", (in, out, url, tail) -> {
+            final long start = jsMetrics.start();
+            final Number result = algorithms.js(Router.parseInt(url, tail));
+            final long writing = jsMetrics.polyglot(start);
+            final Format format = Format.negotiate(in);
+            if (format == Format.TEXT) {
+                out.end(result + "\n");
+            } else {
+                send(out, format, result);
             }
+            jsMetrics.end(start, writing);
+        });
 #end
 #if ($algorithmR.equals("true"))
-            if (url.startsWith("/r/")) {
-                out.end(algorithms.r(Integer.parseInt(url.substring(3))) + "\n");
-                return;
+        final RouteMetrics rMetrics = metrics.route("r");
+        router.register("/r/", (in, out, url, tail) -> {
+            final long start = rMetrics.start();
+            final Number result = algorithms.r(Router.parseInt(url, tail));
+            final long writing = rMetrics.polyglot(start);
+            final Format format = Format.negotiate(in);
+            if (format == Format.TEXT) {
+                out.end(result + "\n");
+            } else {
+                send(out, format, result);
             }
+            rMetrics.end(start, writing);
+        });
 #end
-            out.end("Received: " + url + "\n");
+        final Object rawHttp = require.require("http");
+        Http http = global.cast(rawHttp, (Http) null);
+        Server server = http.createServer((in, out) -> {
+            if (!router.dispatch(in, out)) {
+                out.end("Received: " + in.url() + "\n");
+            }
         });
-        server.listen(PORT);
+        final ServerOptions options = ServerOptions.create();
+        global.configure(server, options);
+        server.listen(PORT, options.backlog());
         System.err.println("Listening on http://localhost:" + PORT + "/");
 #end
+        warmUp(newAlgorithms);
+    }
+
+#if (!$serverCode.equals("js"))
+    private void send(ServerResponse out, Format format, Number value) {
+        out.setHeader("Content-Type", format.contentType());
+        out.end(global.buffer(format.encode(value)));
+    }
+
+#end
+    /**
+     * Evaluates sources of the guest languages eagerly and calls every
+     * algorithm {@code warmup.iterations} times to get it compiled before
+     * {@code /ready} reports the server as ready. Guest languages are called
+     * on the event loop in small chunks, so the server keeps responding
+     * meanwhile. The Java algorithm warms up on a background thread unless
+     * {@code warmup.background} is {@code false}. Languages to warm up are
+     * listed in {@code warmup.languages}, {@code -Dwarmup=false} turns
+     * the warm-up off.
+     */
+    private void warmUp(Algorithms raw) {
+        if (!Boolean.parseBoolean(System.getProperty("warmup", "true"))) {
+            ready = true;
+            return;
+        }
+        final int iterations = Math.max(1, Integer.getInteger("warmup.iterations", 1000));
+        final List<String> languages = Arrays.asList(System.getProperty("warmup.languages", "java,js,ruby,r").split(","));
+        final long start = System.nanoTime();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final Runnable done = () -> {
+            if (pending.decrementAndGet() == 0) {
+                ready = true;
+                System.err.println("Warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        };
+        final List<IntConsumer> calls = new ArrayList<>();
+#if ($algorithmJava.equals("true"))
+        if (languages.contains("java")) {
+            if (Boolean.parseBoolean(System.getProperty("warmup.background", "true"))) {
+                pending.incrementAndGet();
+                Thread background = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            factorial(10 + i % 10);
+                        }
+                    } catch (RuntimeException ex) {
+                        System.err.println("Java warm-up failed: " + ex);
+                    } finally {
+                        done.run();
+                    }
+                }, "Java warm-up");
+                background.setDaemon(true);
+                background.start();
+            } else {
+                calls.add((n) -> factorial(n));
+            }
+        }
+#end
+#if ($algorithmRuby.equals("true"))
+        if (languages.contains("ruby")) {
+            calls.add((n) -> raw.ruby(n));
+        }
+#end
+#if ($algorithmJS.equals("true"))
+        if (languages.contains("js")) {
+            calls.add((n) -> raw.js(n));
+        }
+#end
+#if ($algorithmR.equals("true"))
+        if (languages.contains("r")) {
+            calls.add((n) -> raw.r(n));
+        }
+#end
+        global.defer(new WarmupLoop(calls, iterations, done));
+    }
+
+    /**
+     * Performs the event loop part of the warm-up in chunks. An algorithm
+     * that fails is logged and not called again. Calls {@code done} when
+     * finished even if something else goes wrong, so the server gets ready.
+     */
+    private final class WarmupLoop implements Runnable {
+        private static final int CHUNK = 50;
+        private final List<IntConsumer> calls;
+        private final int iterations;
+        private final Runnable done;
+        private int call;
+        private int iteration;
+
+        WarmupLoop(List<IntConsumer> calls, int iterations, Runnable done) {
+            this.calls = calls;
+            this.iterations = iterations;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            boolean scheduled = false;
+            try {
+                for (int i = 0; i < CHUNK; i++) {
+                    if (call == calls.size()) {
+                        return;
+                    }
+                    try {
+                        calls.get(call).accept(10 + iteration % 10);
+                    } catch (RuntimeException ex) {
+                        System.err.println("Warm-up failed: " + ex);
+                        iteration = iterations - 1;
+                    }
+                    if (++iteration == iterations) {
+                        iteration = 0;
+                        call++;
+                    }
+                }
+                global.defer(this);
+                scheduled = true;
+            } finally {
+                if (!scheduled) {
+                    done.run();
+                }
+            }
+        }
+    }
+
+    /** Whether the warm-up has finished. */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /** The algorithms with their results cached. Available after {@link #postInit}. */
+    public Algorithms getAlgorithms() {
+        return algorithms;
+    }
+
+    /**
+     * Routes registered by the server. Both the Java and the JavaScript
+     * server dispatch their requests through it.
+     */
+    public Router router() {
+        return router;
+    }
+
+    /**
+     * Summary of the polyglot calls, see {@link BoundaryProfiler}.
+     *
+     * @return {@code null} unless started with {@code -Dprofile.polyglot=true}
+     */
+    public String profile() {
+        return profiler == null ? null : profiler.summary();
+    }
+
+    /** Request metrics of the routes, reported by {@code /metrics}. */
+    public Metrics metrics() {
+        return metrics;
     }
 
     @FunctionalInterface
@@ -134,6 +423,12 @@ public class Services {
         public Http cast(Object value, Http prototype);
         public Server cast(Object value, Server prototype);
         public Computation cast(Object value, Computation prototype);
+        /** Runs the task later on the event loop thread. */
+        public void defer(Runnable task);
+        /** Wraps the bytes into a node.js {@code Buffer}. */
+        public Object buffer(byte[] bytes);
+        /** Applies the connection settings to a server before it starts listening. */
+        public void configure(Server server, ServerOptions options);
     }
 
     public interface Polyglot {
@@ -143,7 +438,141 @@ public class Services {
 
     @FunctionalInterface
     public interface Worker {
+        /**
+         * Computes {@code background} outside of the event loop and passes
+         * the result to {@code finish} on the event loop.
+         *
+         * @throws java.util.concurrent.RejectedExecutionException when the worker has too much work already
+         */
         public <T> void submit(Supplier<T> background, Consumer<T> finish);
+
+        /**
+         * Like {@link #submit(Supplier, Consumer)}, but doesn't start the work
+         * once {@code cancellation} is cancelled. The {@code background} runs
+         * with the {@code cancellation} as {@link Cancellation#current()}.
+         * When the work is cancelled, {@code finish} receives {@code null}.
+         */
+        public default <T> void submit(Supplier<T> background, Consumer<T> finish, Cancellation cancellation) {
+            submit(() -> {
+                try {
+                    return cancellation.call(background);
+                } catch (CancellationException ex) {
+                    return null;
+                }
+            }, finish);
+        }
+
+        /**
+         * Like {@link #submit(Supplier, Consumer)}, but when {@code background}
+         * throws, the exception is passed to {@code failed} on the event loop
+         * instead of calling {@code finish}.
+         */
+        public default <T> void submit(Supplier<T> background, Consumer<T> finish, Consumer<RuntimeException> failed) {
+            final AtomicReference<RuntimeException> error = new AtomicReference<>();
+            submit(() -> {
+                try {
+                    return background.get();
+                } catch (RuntimeException ex) {
+                    error.set(ex);
+                    return null;
+                }
+            }, (result) -> {
+                final RuntimeException ex = error.get();
+                if (ex == null) {
+                    finish.accept(result);
+                } else {
+                    failed.accept(ex);
+                }
+            });
+        }
+
+        /** Like {@link #submit(Supplier, Consumer, Cancellation)}, but passes exceptions to {@code failed}. */
+        public default <T> void submit(Supplier<T> background, Consumer<T> finish, Consumer<RuntimeException> failed, Cancellation cancellation) {
+            submit(() -> {
+                try {
+                    return cancellation.call(background);
+                } catch (CancellationException ex) {
+                    return null;
+                }
+            }, finish, failed);
+        }
+    }
+
+    /**
+     * Tells long computations to give up, because nobody waits for their
+     * result anymore. Either the client went away and {@link #cancel()} got
+     * called or the deadline passed. Computations are supposed to call
+     * {@link #check()} from time to time.
+     */
+    public static final class Cancellation {
+        /** Never cancelled. */
+        public static final Cancellation NONE = new Cancellation(0);
+        private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Cancellation(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /** Cancellation without a deadline. */
+        public static Cancellation create() {
+            return new Cancellation(0);
+        }
+
+        /** Cancellation with deadline after given milliseconds, zero means no deadline. */
+        public static Cancellation withTimeout(long millis) {
+            if (millis <= 0) {
+                return create();
+            }
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            return new Cancellation(deadline == 0 ? 1 : deadline);
+        }
+
+        /** Cancellation with deadline after {@code request.timeout} milliseconds, no deadline by default. */
+        public static Cancellation forRequest() {
+            return withTimeout(Long.getLong("request.timeout", 0L));
+        }
+
+        /** Cancellation of the work the current thread performs, {@link #NONE} if there is none. */
+        public static Cancellation current() {
+            final Cancellation c = CURRENT.get();
+            return c == null ? NONE : c;
+        }
+
+        public void cancel() {
+            if (this != NONE) {
+                cancelled = true;
+            }
+        }
+
+        public boolean isTimedOut() {
+            return deadline != 0 && System.nanoTime() - deadline >= 0;
+        }
+
+        public boolean isCancelled() {
+            return cancelled || isTimedOut();
+        }
+
+        /** @throws CancellationException when cancelled */
+        public void check() {
+            if (isCancelled()) {
+                throw new CancellationException(cancelled ? "Cancelled" : "Deadline passed");
+            }
+        }
+
+        /** Calls the {@code work} with this as {@link #current()} unless cancelled already. */
+        public <T> T call(Supplier<T> work) {
+            check();
+            final Cancellation previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return work.get();
+            } finally {
+                CURRENT.set(previous);
+            }
+        }
     }
 
     public interface Http {
@@ -157,133 +586,1661 @@ public class Services {
 
     public interface Server {
         public void listen(int port);
+        /** Listens with {@code backlog} connections waiting to be accepted. */
+        public void listen(int port, int backlog);
+    }
+
+    /**
+     * Connection settings of the HTTP server. The defaults suit many short
+     * requests over persistent connections, even pipelined ones: idle
+     * connections are kept open longer than load balancers usually keep
+     * theirs, so a balancer never reuses a connection the server is just
+     * closing, small responses aren't delayed by Nagle's algorithm and
+     * bursts of new connections wait in a deep accept queue.
+     */
+    public static final class ServerOptions {
+        private final int keepAliveTimeout;
+        private final int headersTimeout;
+        private final int maxHeadersCount;
+        private final int backlog;
+        private final boolean noDelay;
+        private final int maxConnections;
+
+        public ServerOptions(int keepAliveTimeout, int headersTimeout, int maxHeadersCount, int backlog, boolean noDelay, int maxConnections) {
+            if (keepAliveTimeout > 0 && headersTimeout > 0 && headersTimeout <= keepAliveTimeout) {
+                throw new IllegalArgumentException("headersTimeout " + headersTimeout + " has to exceed keepAliveTimeout " + keepAliveTimeout);
+            }
+            this.keepAliveTimeout = keepAliveTimeout;
+            this.headersTimeout = headersTimeout;
+            this.maxHeadersCount = maxHeadersCount;
+            this.backlog = backlog;
+            this.noDelay = noDelay;
+            this.maxConnections = maxConnections;
+        }
+
+        /**
+         * Reads the settings from {@code server.keepAliveTimeout} (65000 ms),
+         * {@code server.headersTimeout} (66000 ms), {@code server.maxHeadersCount}
+         * (100), {@code server.backlog} (2048), {@code server.noDelay} (true)
+         * and {@code server.maxConnections} (0) system properties.
+         */
+        public static ServerOptions create() {
+            return new ServerOptions(
+                Integer.getInteger("server.keepAliveTimeout", 65000),
+                Integer.getInteger("server.headersTimeout", 66000),
+                Integer.getInteger("server.maxHeadersCount", 100),
+                Integer.getInteger("server.backlog", 2048),
+                Boolean.parseBoolean(System.getProperty("server.noDelay", "true")),
+                Integer.getInteger("server.maxConnections", 0)
+            );
+        }
+
+        /** Milliseconds an idle persistent connection stays open, 0 means forever. */
+        public int keepAliveTimeout() {
+            return keepAliveTimeout;
+        }
+
+        /** Milliseconds the client has to send complete request headers. */
+        public int headersTimeout() {
+            return headersTimeout;
+        }
+
+        /** Request headers beyond this count are ignored. */
+        public int maxHeadersCount() {
+            return maxHeadersCount;
+        }
+
+        /** Connections waiting to be accepted. */
+        public int backlog() {
+            return backlog;
+        }
+
+        /** Whether responses are sent without waiting to fill a TCP segment. */
+        public boolean noDelay() {
+            return noDelay;
+        }
+
+        /** Connections open at once, further ones are refused. 0 means no limit. */
+        public int maxConnections() {
+            return maxConnections;
+        }
+    }
+
+    /**
+     * Dispatches requests by URL prefix. Registered paths are kept in a trie,
+     * so the cost of a lookup depends on the length of the URL, not on the
+     * number of routes. The query string is ignored when matching.
+     */
+    public static final class Router {
+        private static final String RETRY_AFTER = Integer.getInteger("limit.retryAfter", 1).toString();
+        private final Node root = new Node();
+
+        /** Registers route for all URLs starting with given prefix. Longest prefix wins. */
+        public Router register(String prefix, Route route) {
+            root.find(prefix).prefix = route;
+            return this;
+        }
+
+        /** Registers route for exactly the given path. Takes precedence over prefixes. */
+        public Router registerExact(String path, Route route) {
+            root.find(path).exact = route;
+            return this;
+        }
+
+        /**
+         * Limits number of requests handled by route of the path at once.
+         * A request counts until its response emits {@code finish} or
+         * {@code close}. Requests over the limit are refused by {@link #busy}.
+         *
+         * @param rejected called for every refused request
+         */
+        public Router limit(String path, int max, Runnable rejected) {
+            root.find(path).limit = new Limit(max, rejected);
+            return this;
+        }
+
+        /** Replies with 504 to a request that passed its deadline. */
+        public static void timedOut(ServerResponse out) {
+            out.writeHead(504);
+            out.end("Computation took too long\n");
+        }
+
+        /** Replies with 500 to a request whose computation failed. */
+        public static void failed(ServerResponse out, RuntimeException ex) {
+            out.writeHead(500);
+            out.end(ex + "\n");
+        }
+
+        /** Replies with 503 asking the client to retry after {@code limit.retryAfter} seconds. */
+        public static void busy(ServerResponse out) {
+            out.setHeader("Retry-After", RETRY_AFTER);
+            out.writeHead(503);
+            out.end("Too busy, try again later\n");
+        }
+
+        /**
+         * Finds route for URL of the request and calls it.
+         *
+         * @return {@code false} if no route matches the URL
+         */
+        public boolean dispatch(IncommingMessage in, ServerResponse out) {
+            final String url = in.url();
+            int end = url.indexOf('?');
+            if (end == -1) {
+                end = url.length();
+            }
+            Route found = null;
+            Limit limit = null;
+            int tail = 0;
+            Node node = root;
+            for (int i = 0; node != null; i++) {
+                if (node.prefix != null) {
+                    found = node.prefix;
+                    limit = node.limit;
+                    tail = i;
+                }
+                if (i == end) {
+                    if (node.exact != null) {
+                        found = node.exact;
+                        limit = node.limit;
+                        tail = i;
+                    }
+                    break;
+                }
+                node = node.child(url.charAt(i));
+            }
+            if (found == null) {
+                return false;
+            }
+            if (limit != null) {
+                if (!limit.tryAcquire()) {
+                    limit.rejected.run();
+                    busy(out);
+                    return true;
+                }
+                final Runnable release = limit.releaser();
+                out.once("finish", release);
+                out.once("close", release);
+            }
+            found.handle(in, out, url, tail);
+            return true;
+        }
+
+        /**
+         * Parses non-negative decimal number starting at given offset without
+         * allocating a substring. Parsing stops at {@code /} or {@code ?}.
+         *
+         * @throws NumberFormatException if there are no digits, other characters or the value overflows
+         */
+        public static int parseInt(CharSequence text, int from) {
+            int value = 0;
+            int i = from;
+            for (; i < text.length(); i++) {
+                final char ch = text.charAt(i);
+                if (ch == '/' || ch == '?') {
+                    break;
+                }
+                if (ch < '0' || ch > '9' || value > (Integer.MAX_VALUE - (ch - '0')) / 10) {
+                    throw new NumberFormatException("Not a number: " + text.subSequence(from, text.length()));
+                }
+                value = value * 10 + (ch - '0');
+            }
+            if (i == from) {
+                throw new NumberFormatException("No number at " + from + " in " + text);
+            }
+            return value;
+        }
+
+        private static final class Limit {
+            private final int max;
+            private final Runnable rejected;
+            private final AtomicInteger active = new AtomicInteger();
+
+            Limit(int max, Runnable rejected) {
+                this.max = max;
+                this.rejected = rejected;
+            }
+
+            boolean tryAcquire() {
+                for (;;) {
+                    final int now = active.get();
+                    if (now >= max) {
+                        return false;
+                    }
+                    if (active.compareAndSet(now, now + 1)) {
+                        return true;
+                    }
+                }
+            }
+
+            /** Releases the permit when run for the first time. */
+            Runnable releaser() {
+                final AtomicBoolean released = new AtomicBoolean();
+                return () -> {
+                    if (released.compareAndSet(false, true)) {
+                        active.decrementAndGet();
+                    }
+                };
+            }
+        }
+
+        private static final class Node {
+            private char[] keys = new char[0];
+            private Node[] children = new Node[0];
+            Route prefix;
+            Route exact;
+            Limit limit;
+
+            Node child(char ch) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == ch) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            Node find(String path) {
+                Node node = this;
+                for (int i = 0; i < path.length(); i++) {
+                    final char ch = path.charAt(i);
+                    Node next = node.child(ch);
+                    if (next == null) {
+                        next = new Node();
+                        int at = node.keys.length;
+                        node.keys = Arrays.copyOf(node.keys, at + 1);
+                        node.children = Arrays.copyOf(node.children, at + 1);
+                        node.keys[at] = ch;
+                        node.children[at] = next;
+                    }
+                    node = next;
+                }
+                return node;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Route {
+        /**
+         * Handles request matched by the {@link Router}.
+         *
+         * @param url the requested URL
+         * @param tail index of the first character after the matched path
+         */
+        public void handle(IncommingMessage in, ServerResponse out, String url, int tail);
     }
 
     public interface IncommingMessage {
         String url();
+        /** Request headers with lower case names. */
+        Map<String, Object> headers();
     }
 
     public interface ServerResponse {
+        void writeHead(int statusCode);
+        void setHeader(String name, String value);
+        /**
+         * Sends a chunk of the body.
+         *
+         * @return {@code false} when the chunk had to be buffered, wait for {@code drain} before writing more
+         */
+        boolean write(String chunk);
+        /** Registers a listener called just once, when the {@code event} is emitted next time. */
+        void once(String event, Runnable listener);
         void end(String text);
+        /** Ends the response with data like a {@link Global#buffer buffer}. */
+        void end(Object data);
     }
 
-    public static final class TransferablePromiseCompletion {
-        private final Object resolve;
-        private final Object reject;
-        private final Thread ownerThread;
+    /**
+     * Representation of numeric results requested by the client, either by
+     * the {@code format} query parameter ({@code text}, {@code binary} or
+     * {@code varint}) or by the {@code Accept} header. {@link #BINARY} sends
+     * big-endian two's complement bytes of arbitrary precision integers and
+     * big-endian IEEE 754 double for other numbers. {@link #VARINT} prefixes
+     * the same bytes with their count encoded as unsigned LEB128 varint.
+     * Neither of them converts the number to decimal digits.
+     */
+    public enum Format {
+        TEXT("text/plain"),
+        BINARY("application/octet-stream"),
+        VARINT("application/x-varint");
 
-        public TransferablePromiseCompletion(Object resolve, Object reject) {
-            this.resolve = resolve;
-            this.reject = reject;
-            this.ownerThread = Thread.currentThread();
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
         }
 
-        public Object getPromiseResolve() {
-            assert Thread.currentThread() == this.ownerThread : "This object must be accessed from the creating thread";
-            return this.resolve;
+        public String contentType() {
+            return contentType;
         }
 
-        public Object getPromiseReject() {
-            assert Thread.currentThread() == this.ownerThread : "This object must be accessed from the creating thread";
-            return this.reject;
-        }        
-    }
+        /** Chooses format for the request. The query parameter takes precedence. */
+        public static Format negotiate(IncommingMessage in) {
+            final String param = queryParameter(in.url(), "format");
+            if (param != null) {
+                for (Format format : values()) {
+                    if (format.name().equalsIgnoreCase(param)) {
+                        return format;
+                    }
+                }
+                return TEXT;
+            }
+            final Map<String, Object> headers = in.headers();
+            final Object accept = headers == null ? null : headers.get("accept");
+            if (accept != null) {
+                if (accept.toString().contains(VARINT.contentType)) {
+                    return VARINT;
+                }
+                if (accept.toString().contains(BINARY.contentType)) {
+                    return BINARY;
+                }
+            }
+            return TEXT;
+        }
 
-#if ($algorithmJava.equals("true"))
-    public BigInteger factorial(int value) {
-        BigInteger one = BigInteger.valueOf(1);
-        BigInteger n = BigInteger.valueOf(value);
-        BigInteger result = one;
-        while (n.compareTo(one) >= 0) {
-            result = result.multiply(n);
-            n = n.subtract(one);
+        static String queryParameter(String url, String name) {
+            int at = url.indexOf('?');
+            while (at != -1) {
+                int end = url.indexOf('&', at + 1);
+                if (end == -1) {
+                    end = url.length();
+                }
+                final int value = at + 1 + name.length();
+                if (value < end && url.charAt(value) == '=' && url.startsWith(name, at + 1)) {
+                    return url.substring(value + 1, end);
+                }
+                at = end < url.length() ? end : -1;
+            }
+            return null;
         }
-        return result;
-    }
-#end
 
-    public interface Algorithms {
+        /** Encodes the number, not applicable to {@link #TEXT}. */
+        public byte[] encode(Number value) {
+            if (this == TEXT) {
+                throw new IllegalStateException();
+            }
+            byte[] bytes;
 #if ($algorithmJava.equals("true"))
-        BigInteger java(int n);
-#end
-#if ($algorithmRuby.equals("true"))
-        String ruby(int n);
-#end
-#if ($algorithmJS.equals("true"))
-        Number js(int n);
-#end
-#if ($algorithmR.equals("true"))
-        Number r(int n);
+            if (value instanceof BigInteger) {
+                bytes = ((BigInteger) value).toByteArray();
+            } else {
+                bytes = doubleBytes(value.doubleValue());
+            }
+#else
+            bytes = doubleBytes(value.doubleValue());
 #end
-    }
-
-    @FunctionalInterface
-    public interface Computation {
-        public Object compute(Object value);
-    }
+            if (this == BINARY) {
+                return bytes;
+            }
+            int prefix = 1;
+            for (int length = bytes.length; length >= 0x80; length >>>= 7) {
+                prefix++;
+            }
+            final byte[] result = new byte[prefix + bytes.length];
+            int length = bytes.length;
+            for (int i = 0; i < prefix - 1; i++) {
+                result[i] = (byte) (0x80 | (length & 0x7f));
+                length >>>= 7;
+            }
+            result[prefix - 1] = (byte) length;
+            System.arraycopy(bytes, 0, result, prefix, bytes.length);
+            return result;
+        }
 
-#if (!$serverCode.equals("js"))
-    private final class AlgorithmsImpl implements Algorithms {
-#if ($algorithmRuby.equals("true"))
-        private Computation ruby;
-#end
-#if ($algorithmJS.equals("true"))
-        private Computation js;
-#end
-#if ($algorithmR.equals("true"))
-        private Computation r;
-#end
-#if ($algorithmJava.equals("true"))
-        @Override
-        public final BigInteger java(int n) {
-            return factorial(n);
+        private static byte[] doubleBytes(double value) {
+            final long bits = Double.doubleToLongBits(value);
+            final byte[] bytes = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (bits >>> (56 - 8 * i));
+            }
+            return bytes;
         }
-#end
+    }
 
-#if ($algorithmJS.equals("true"))
-        @Override
-        public final Number js(int n) {
-            if (js == null) {
-                final String jsCode =
-                    "(function fac(n) {\n" +
-                    "    if (n <= 1) return 1;\n" +
-                    "    return n * fac(n - 1);\n" +
-                    "})\n";
+    /**
+     * Per route request metrics in Prometheus text format. Routes are
+     * registered at start up, recording a request then only updates
+     * atomic counters without allocating.
+     */
+    public static final class Metrics {
+        private final Map<String, RouteMetrics> routes = new LinkedHashMap<>();
 
-                Object fn = global.Polyglot().eval("text/javascript", jsCode);
-                js = global.cast(fn, (Computation) null);
-            }
-            return (Number) js.compute(n);
+        /** Metrics of the route, created when asked for the first time. */
+        public synchronized RouteMetrics route(String name) {
+            return routes.computeIfAbsent(name, RouteMetrics::new);
         }
-#end
 
-#if ($algorithmR.equals("true"))
-        @Override
-        public final Number r(int n) {
-            if (r == null) {
-                Object fn = global.Polyglot().eval("text/x-r", "factorial");
-                r = global.cast(fn, (Computation) null);
+        public synchronized String prometheus() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("# HELP services_requests_total Requests received by route.\n");
+            sb.append("# TYPE services_requests_total counter\n");
+            for (RouteMetrics route : routes.values()) {
+                sb.append("services_requests_total{route=\"").append(route.name).append("\"} ").append(route.requests.get()).append('\n');
             }
-            return (Number) r.compute(n);
+            sb.append("# HELP services_rejected_total Requests refused with 503 by route.\n");
+            sb.append("# TYPE services_rejected_total counter\n");
+            for (RouteMetrics route : routes.values()) {
+                sb.append("services_rejected_total{route=\"").append(route.name).append("\"} ").append(route.rejected.get()).append('\n');
+            }
+            histograms(sb, "services_request_seconds", "Time from receiving the request to ending the response.", 0);
+            histograms(sb, "services_queued_seconds", "Time spent waiting for a worker.", 1);
+            histograms(sb, "services_polyglot_seconds", "Time spent computing the result.", 2);
+            histograms(sb, "services_write_seconds", "Time spent writing the response.", 3);
+            return sb.toString();
         }
-#end
 
-#if ($algorithmRuby.equals("true"))
-        @Override
-        public final String ruby(int n) {
-            if (ruby == null) {
-                String rubyCode =
-                    "def fac(n)\n" +
-                    "  f = (1..n).reduce(1, :*)\n" +
-                    "  f.to_s\n" +
-                    "end\n" +
-                    "method(:fac)";
-                Object fn = global.Polyglot().eval("application/x-ruby", rubyCode);
-                ruby = global.cast(fn, (Computation) null);
+        private void histograms(StringBuilder sb, String metric, String help, int which) {
+            sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(metric).append(" histogram\n");
+            for (RouteMetrics route : routes.values()) {
+                route.histograms[which].print(sb, metric, route.name);
             }
-            return (String) ruby.compute(n);
         }
-#end
     }
-#end
+
+    /** Counters and latency histograms of a single route. */
+    public static final class RouteMetrics {
+        private final String name;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final Histogram[] histograms = {
+            new Histogram(), new Histogram(), new Histogram(), new Histogram()
+        };
+
+        RouteMetrics(String name) {
+            this.name = name;
+        }
+
+        public long now() {
+            return System.nanoTime();
+        }
+
+        /** Counts the request, returns its start time. */
+        public long start() {
+            requests.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /** Counts request refused because of too much load. */
+        public void reject() {
+            rejected.incrementAndGet();
+        }
+
+        /** Records time spent queued since given time, returns current time. */
+        public long queued(long since) {
+            return record(1, since);
+        }
+
+        /** Records time spent computing since given time, returns current time. */
+        public long polyglot(long since) {
+            return record(2, since);
+        }
+
+        /** Records total time of the request. */
+        public void end(long start) {
+            record(0, start);
+        }
+
+        /** Records total time of the request and time spent writing the response. */
+        public void end(long start, long writing) {
+            final long now = record(0, start);
+            histograms[3].record(now - writing);
+        }
+
+        private long record(int which, long since) {
+            final long now = System.nanoTime();
+            histograms[which].record(now - since);
+            return now;
+        }
+
+        Histogram histogram(int which) {
+            return histograms[which];
+        }
+    }
+
+    /**
+     * Log-linear histogram of durations in nanoseconds. Every power of two
+     * between about a microsecond and a minute is split into four buckets,
+     * so the bucket bounds are within 25% of each other.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int MIN_SHIFT = 10;
+        private static final int MAX_SHIFT = 36;
+        static final int BUCKETS = ((MAX_SHIFT - MIN_SHIFT) << SUB_BITS) + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long nanos) {
+            final long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            sum.addAndGet(value);
+        }
+
+        /** Index of the bucket, {@link #BUCKETS} is for values over all bounds. */
+        static int index(long nanos) {
+            if (nanos < (1L << MIN_SHIFT)) {
+                return 0;
+            }
+            final int exp = 63 - Long.numberOfLeadingZeros(nanos);
+            if (exp >= MAX_SHIFT) {
+                return BUCKETS;
+            }
+            final int sub = (int) (nanos >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return 1 + ((exp - MIN_SHIFT) << SUB_BITS) + sub;
+        }
+
+        /** Exclusive upper bound of the bucket in nanoseconds. */
+        static long bound(int index) {
+            if (index == 0) {
+                return 1L << MIN_SHIFT;
+            }
+            final int exp = MIN_SHIFT + ((index - 1) >> SUB_BITS);
+            final int sub = (index - 1) & ((1 << SUB_BITS) - 1);
+            return (1L << exp) + ((sub + 1L) << (exp - SUB_BITS));
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i <= BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        void print(StringBuilder sb, String metric, String route) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts.get(i);
+                sb.append(metric).append("_bucket{route=\"").append(route).append("\",le=\"")
+                    .append(bound(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BUCKETS);
+            sb.append(metric).append("_bucket{route=\"").append(route).append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(metric).append("_sum{route=\"").append(route).append("\"} ").append(sum.get() / 1e9).append('\n');
+            sb.append(metric).append("_count{route=\"").append(route).append("\"} ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Measures calls crossing the boundary between Java and the other
+     * languages. Wraps {@link Global}, the {@link Polyglot} it returns,
+     * every {@link Computation} it casts and the {@link Algorithms} the
+     * routes call. Each kind of call is a site with
+     * its count, total and maximal time. A computation site is named after
+     * the language of the evaluated code and the Java type its results got
+     * converted to. Conversions of values crossing the boundary on their own,
+     * like the {@code cast} and {@code buffer} calls, are sites as well.
+     */
+    static final class BoundaryProfiler {
+        private final Map<String, Site> sites = new LinkedHashMap<>();
+        private final List<Evaluated> evaluated = new ArrayList<>();
+
+        synchronized Site site(String name) {
+            return sites.computeIfAbsent(name, Site::new);
+        }
+
+        /** Remembers the language of an evaluated value, without keeping the value alive. */
+        synchronized void evaluated(Object value, String language) {
+            evaluated.removeIf((e) -> e.get() == null);
+            evaluated.add(new Evaluated(value, language));
+        }
+
+        synchronized String language(Object value) {
+            for (Evaluated e : evaluated) {
+                if (e.get() == value) {
+                    return e.language;
+                }
+            }
+            return "unknown";
+        }
+
+        Global wrap(Global global) {
+            return new ProfiledGlobal(global);
+        }
+
+        Algorithms wrap(Algorithms algorithms) {
+            return new ProfiledAlgorithms(algorithms);
+        }
+
+        /** Sites sorted by total time, the most expensive first. */
+        synchronized String summary() {
+            List<Site> sorted = new ArrayList<>(sites.values());
+            sorted.sort((a, b) -> Long.compare(b.nanos.get(), a.nanos.get()));
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%-50s %10s %12s %10s %10s%n", "site", "calls", "total ms", "avg us", "max us"));
+            for (Site site : sorted) {
+                final long calls = site.calls.get();
+                sb.append(String.format(Locale.ROOT, "%-50s %10d %12.3f %10.3f %10.3f%n",
+                    site.name, calls, site.nanos.get() / 1e6,
+                    calls == 0 ? 0.0 : site.nanos.get() / 1e3 / calls, site.max.get() / 1e3
+                ));
+            }
+            return sb.toString();
+        }
+
+        private static final class Evaluated extends WeakReference<Object> {
+            final String language;
+
+            Evaluated(Object value, String language) {
+                super(value);
+                this.language = language;
+            }
+        }
+
+        static final class Site {
+            final String name;
+            final AtomicLong calls = new AtomicLong();
+            final AtomicLong nanos = new AtomicLong();
+            final AtomicLong max = new AtomicLong();
+
+            Site(String name) {
+                this.name = name;
+            }
+
+            void record(long start) {
+                final long time = System.nanoTime() - start;
+                calls.incrementAndGet();
+                nanos.addAndGet(time);
+                max.accumulateAndGet(time, Math::max);
+            }
+        }
+
+        private final class ProfiledGlobal implements Global {
+            private final Global delegate;
+            private final Site polyglot = site("Global.Polyglot");
+            private final Site castHttp = site("Global.cast(Http)");
+            private final Site castServer = site("Global.cast(Server)");
+            private final Site castComputation = site("Global.cast(Computation)");
+            private final Site buffer = site("Global.buffer");
+
+            ProfiledGlobal(Global delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public Polyglot Polyglot() {
+                final long start = System.nanoTime();
+                final Polyglot result = delegate.Polyglot();
+                polyglot.record(start);
+                return new ProfiledPolyglot(result);
+            }
+
+            @Override
+            public void quit() {
+                delegate.quit();
+            }
+
+            @Override
+            public Http cast(Object value, Http prototype) {
+                final long start = System.nanoTime();
+                final Http result = delegate.cast(value, prototype);
+                castHttp.record(start);
+                return result;
+            }
+
+            @Override
+            public Server cast(Object value, Server prototype) {
+                final long start = System.nanoTime();
+                final Server result = delegate.cast(value, prototype);
+                castServer.record(start);
+                return result;
+            }
+
+            @Override
+            public Computation cast(Object value, Computation prototype) {
+                final long start = System.nanoTime();
+                final Computation result = delegate.cast(value, prototype);
+                castComputation.record(start);
+                return new ProfiledComputation("Computation[" + language(value) + "]", result);
+            }
+
+            @Override
+            public void defer(Runnable task) {
+                delegate.defer(task);
+            }
+
+            @Override
+            public Object buffer(byte[] bytes) {
+                final long start = System.nanoTime();
+                final Object result = delegate.buffer(bytes);
+                buffer.record(start);
+                return result;
+            }
+
+            @Override
+            public void configure(Server server, ServerOptions options) {
+                delegate.configure(server, options);
+            }
+        }
+
+        private final class ProfiledPolyglot implements Polyglot {
+            private final Polyglot delegate;
+
+            ProfiledPolyglot(Polyglot delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public Object eval(String mimeType, String code) {
+                final long start = System.nanoTime();
+                final Object result = delegate.eval(mimeType, code);
+                site("Polyglot.eval[" + mimeType + "]").record(start);
+                evaluated(result, mimeType);
+                return result;
+            }
+
+            @Override
+            public void export(String name, Object obj) {
+                final long start = System.nanoTime();
+                delegate.export(name, obj);
+                site("Polyglot.export").record(start);
+            }
+        }
+
+        private final class ProfiledAlgorithms implements Algorithms {
+            private final Algorithms delegate;
+#if ($algorithmJava.equals("true"))
+            private final Site java = site("Algorithms.java");
+#end
+#if ($algorithmRuby.equals("true"))
+            private final Site ruby = site("Algorithms.ruby");
+#end
+#if ($algorithmJS.equals("true"))
+            private final Site js = site("Algorithms.js");
+#end
+#if ($algorithmR.equals("true"))
+            private final Site r = site("Algorithms.r");
+#end
+
+            ProfiledAlgorithms(Algorithms delegate) {
+                this.delegate = delegate;
+            }
+#if ($algorithmJava.equals("true"))
+
+            @Override
+            public BigInteger java(int n) {
+                final long start = System.nanoTime();
+                final BigInteger result = delegate.java(n);
+                java.record(start);
+                return result;
+            }
+#end
+#if ($algorithmRuby.equals("true"))
+
+            @Override
+            public String ruby(int n) {
+                final long start = System.nanoTime();
+                final String result = delegate.ruby(n);
+                ruby.record(start);
+                return result;
+            }
+#end
+#if ($algorithmJS.equals("true"))
+
+            @Override
+            public Number js(int n) {
+                final long start = System.nanoTime();
+                final Number result = delegate.js(n);
+                js.record(start);
+                return result;
+            }
+#end
+#if ($algorithmR.equals("true"))
+
+            @Override
+            public Number r(int n) {
+                final long start = System.nanoTime();
+                final Number result = delegate.r(n);
+                r.record(start);
+                return result;
+            }
+#end
+        }
+
+        private final class ProfiledComputation implements Computation {
+            private final String name;
+            private final Computation delegate;
+            private volatile TypedSite last;
+
+            ProfiledComputation(String name, Computation delegate) {
+                this.name = name;
+                this.delegate = delegate;
+            }
+
+            @Override
+            public Object compute(Object value) {
+                final long start = System.nanoTime();
+                final Object result = delegate.compute(value);
+                final Class<?> type = result == null ? Void.class : result.getClass();
+                TypedSite site = last;
+                if (site == null || site.type != type) {
+                    site = new TypedSite(type, site(name + " -> " + type.getSimpleName()));
+                    last = site;
+                }
+                site.site.record(start);
+                return result;
+            }
+        }
+
+        private static final class TypedSite {
+            final Class<?> type;
+            final Site site;
+
+            TypedSite(Class<?> type, Site site) {
+                this.type = type;
+                this.site = site;
+            }
+        }
+    }
+
+    public static final class TransferablePromiseCompletion {
+        private final Object resolve;
+        private final Object reject;
+        private final Thread ownerThread;
+
+        public TransferablePromiseCompletion(Object resolve, Object reject) {
+            this.resolve = resolve;
+            this.reject = reject;
+            this.ownerThread = Thread.currentThread();
+        }
+
+        public Object getPromiseResolve() {
+            assert Thread.currentThread() == this.ownerThread : "This object must be accessed from the creating thread";
+            return this.resolve;
+        }
+
+        public Object getPromiseReject() {
+            assert Thread.currentThread() == this.ownerThread : "This object must be accessed from the creating thread";
+            return this.reject;
+        }        
+    }
+
+#if ($algorithmJava.equals("true"))
+    /**
+     * {@link Worker} running the background work in a Java {@link ExecutorService}.
+     * The {@code finish} callbacks are not invoked on the executor threads, but
+     * queued until {@link #takeCompletions(int)} hands them over to the node.js
+     * event loop thread in batches. See {@code NodeCompletionPump} in {@code polyglot_worker.js}.
+     * At most {@code maxPending} submissions may wait for their {@code finish}
+     * callback, further ones are rejected.
+     */
+    public static final class ExecutorWorker implements Worker {
+        private static final Runnable STOP = () -> {};
+        private final ExecutorService executor;
+        private final int maxPending;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final BlockingQueue<Runnable> completions = new LinkedBlockingQueue<>();
+
+        public ExecutorWorker(ExecutorService executor) {
+            this(executor, Integer.MAX_VALUE);
+        }
+
+        public ExecutorWorker(ExecutorService executor, int maxPending) {
+            this.executor = executor;
+            this.maxPending = maxPending;
+        }
+
+        /**
+         * Creates worker according to the {@code services.executor} property.
+         * Recognized values are {@code forkjoin} (the default) and {@code virtual}.
+         * The latter falls back to {@code forkjoin} on JDKs without virtual threads.
+         * The {@code services.threads} property sets parallelism of the fork/join pool.
+         * Up to {@code services.maxQueued} (256 by default) submissions may wait
+         * for a thread.
+         */
+        public static ExecutorWorker create() {
+            return create(System.getProperty("services.executor", "forkjoin"));
+        }
+
+        public static ExecutorWorker create(String kind) {
+            int threads = Integer.getInteger("services.threads", Runtime.getRuntime().availableProcessors());
+            int maxPending = threads + Integer.getInteger("services.maxQueued", 256);
+            if ("virtual".equals(kind)) {
+                try {
+                    Object virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    return new ExecutorWorker((ExecutorService) virtual, maxPending);
+                } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+                    System.err.println("Virtual threads not available, using fork/join pool: " + ex);
+                }
+            } else if (!"forkjoin".equals(kind)) {
+                throw new IllegalArgumentException("Unknown executor: " + kind);
+            }
+            return new ExecutorWorker(new ForkJoinPool(threads), maxPending);
+        }
+
+        @Override
+        public <T> void submit(Supplier<T> background, Consumer<T> finish) {
+            if (pending.incrementAndGet() > maxPending) {
+                pending.decrementAndGet();
+                throw new RejectedExecutionException("More than " + maxPending + " pending submissions");
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        final T result = background.get();
+                        completions.add(() -> {
+                            pending.decrementAndGet();
+                            finish.accept(result);
+                        });
+                    } catch (RuntimeException | Error ex) {
+                        completions.add(() -> {
+                            pending.decrementAndGet();
+                            throw ex;
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                pending.decrementAndGet();
+                throw ex;
+            }
+        }
+
+        /** Number of submissions waiting for their {@code finish} callback. */
+        public int pending() {
+            return pending.get();
+        }
+
+        /**
+         * Waits for next finished computation. Supposed to be called from
+         * a dedicated thread. The returned callback has to be run on the
+         * thread owning the {@code finish} callbacks.
+         *
+         * @return callback to run or {@code null} after {@link #shutdown()}
+         * @throws InterruptedException when interrupted while waiting
+         */
+        public Runnable takeCompletion() throws InterruptedException {
+            Runnable r = completions.take();
+            if (r == STOP) {
+                completions.add(STOP);
+                return null;
+            }
+            return r;
+        }
+
+        /**
+         * Waits for next finished computation and returns it together with
+         * all the others already finished, up to {@code max} of them, so they
+         * can be handed over to the event loop at once.
+         *
+         * @return callbacks to run in order or {@code null} after {@link #shutdown()}
+         * @throws InterruptedException when interrupted while waiting
+         */
+        public Runnable[] takeCompletions(int max) throws InterruptedException {
+            final Runnable first = takeCompletion();
+            if (first == null) {
+                return null;
+            }
+            final List<Runnable> batch = new ArrayList<>();
+            batch.add(first);
+            completions.drainTo(batch, max - 1);
+            final int stop = batch.indexOf(STOP);
+            if (stop >= 0) {
+                batch.subList(stop, batch.size()).clear();
+                completions.add(STOP);
+            }
+            return batch.toArray(new Runnable[0]);
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+            completions.add(STOP);
+        }
+    }
+
+#end
+#if ($algorithmJava.equals("true"))
+    /** Computes factorial, gives up when {@link Cancellation#current()} gets cancelled. */
+    public BigInteger factorial(int value) {
+        return factorials.compute(value, Cancellation.current());
+    }
+
+    /**
+     * Computes factorial for a request submitted at {@code submitted} time
+     * of {@link System#nanoTime()}. Records the time spent waiting in the
+     * queue and computing in the {@code java} route metrics.
+     *
+     * @throws CancellationException when the {@code cancellation} is cancelled meanwhile
+     */
+    public BigInteger factorial(int value, long submitted, Cancellation cancellation) {
+        final long computing = javaMetrics.queued(submitted);
+        final BigInteger result = factorials.compute(value, cancellation);
+        javaMetrics.polyglot(computing);
+        return result;
+    }
+
+    /** Decimal digits of the factorial in chunks, see {@link DecimalChunks}. */
+    public Iterator<String> factorialDigits(int value) {
+        return new DecimalChunks(factorial(value), CHUNK);
+    }
+
+    /** Like {@link #factorialDigits(int)}, but like {@link #factorial(int, long, Cancellation)}. */
+    public Iterator<String> factorialDigits(int value, long submitted, Cancellation cancellation) {
+        return new DecimalChunks(factorial(value, submitted, cancellation), CHUNK);
+    }
+
+    /**
+     * Writes the chunks to the response and ends it with a new line. Stops
+     * writing while the response buffers data and continues on {@code drain}.
+     * Calls {@code done} once the response is ended or closed by the client.
+     */
+    static void writeChunks(Iterator<String> chunks, ServerResponse out, Runnable done) {
+        new ChunkWriter(null, chunks, out, done).write();
+    }
+
+    /**
+     * Like {@link #writeChunks(Iterator, ServerResponse, Runnable)}, but the
+     * chunks are produced by the {@code worker}, so converting a huge number
+     * doesn't block the event loop.
+     */
+    static void writeChunks(Worker worker, Iterator<String> chunks, ServerResponse out, Runnable done) {
+        new ChunkWriter(worker, chunks, out, done).write();
+    }
+
+    /**
+     * Writes chunks to a response one after another. Once the client goes
+     * away, no more chunks are produced and the iterator is released.
+     */
+    private static final class ChunkWriter {
+        private final Worker worker;
+        private final ServerResponse out;
+        private final Cancellation closed = Cancellation.create();
+        private Iterator<String> chunks;
+        private Runnable done;
+
+        ChunkWriter(Worker worker, Iterator<String> chunks, ServerResponse out, Runnable done) {
+            this.worker = worker;
+            this.chunks = chunks;
+            this.out = out;
+            this.done = done;
+            out.once("close", this::close);
+        }
+
+        void write() {
+            while (chunks != null) {
+                if (!chunks.hasNext()) {
+                    chunks = null;
+                    out.end("\n");
+                    finish();
+                    return;
+                }
+                if (worker != null) {
+                    try {
+                        worker.submit(chunks::next, this::written, this::failed, closed);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        // too busy, produce the chunk right here
+                    }
+                }
+                if (!send(chunks.next())) {
+                    return;
+                }
+            }
+        }
+
+        /** Called on the event loop with a chunk produced by the worker, {@code null} once closed. */
+        private void written(String chunk) {
+            if (chunk != null && chunks != null && send(chunk)) {
+                write();
+            }
+        }
+
+        /** @return {@code false} when waiting for {@code drain} */
+        private boolean send(String chunk) {
+            if (out.write(chunk)) {
+                return true;
+            }
+            out.once("drain", this::write);
+            return false;
+        }
+
+        /** The status is sent already, so the response just ends with the exception. */
+        private void failed(RuntimeException ex) {
+            ex.printStackTrace();
+            if (chunks != null) {
+                chunks = null;
+                out.end("\n" + ex + "\n");
+                finish();
+            }
+        }
+
+        private void close() {
+            if (chunks != null) {
+                chunks = null;
+                closed.cancel();
+                finish();
+            }
+        }
+
+        private void finish() {
+            final Runnable last = done;
+            done = null;
+            last.run();
+        }
+    }
+
+    /**
+     * Computes factorials as a balanced product tree and remembers a bounded
+     * number of results as checkpoints. A computation resumes from the nearest
+     * lower checkpoint. The least recently used checkpoint is evicted first.
+     * Ranges of at least {@code parallelThreshold} numbers are multiplied
+     * in parallel by a fork/join pool. The {@link Cancellation} is checked
+     * before every {@code LEAF} multiplications.
+     */
+    static final class Factorial {
+        private static final int LEAF = 32;
+        private static final int SPLIT = 2048;
+
+        private final int minCheckpoint;
+        private final int parallelThreshold;
+        private final TreeMap<Integer, BigInteger> checkpoints = new TreeMap<>();
+        private final LinkedHashMap<Integer, Integer> usage;
+
+        Factorial(int maxCheckpoints, int minCheckpoint, int parallelThreshold) {
+            this.minCheckpoint = minCheckpoint;
+            this.parallelThreshold = parallelThreshold;
+            this.usage = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                    if (size() > maxCheckpoints) {
+                        checkpoints.remove(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        BigInteger compute(int n) {
+            return compute(n, Cancellation.NONE);
+        }
+
+        BigInteger compute(int n, Cancellation cancellation) {
+            if (n <= 1) {
+                return BigInteger.ONE;
+            }
+            Map.Entry<Integer, BigInteger> start;
+            synchronized (this) {
+                start = checkpoints.floorEntry(n);
+                if (start != null) {
+                    usage.get(start.getKey());
+                }
+            }
+            final BigInteger result;
+            if (start == null) {
+                result = multiply(2, n, cancellation);
+            } else if (start.getKey() == n) {
+                return start.getValue();
+            } else {
+                result = start.getValue().multiply(multiply(start.getKey() + 1, n, cancellation));
+            }
+            if (n >= minCheckpoint) {
+                synchronized (this) {
+                    checkpoints.put(n, result);
+                    usage.put(n, n);
+                }
+            }
+            return result;
+        }
+
+        synchronized int checkpoints() {
+            return checkpoints.size();
+        }
+
+        private BigInteger multiply(int from, int to, Cancellation cancellation) {
+            if (to - from + 1 >= parallelThreshold) {
+                return new ProductTask(from, to, cancellation).invoke();
+            }
+            return product(from, to, cancellation);
+        }
+
+        /** Product of all numbers in the inclusive range. */
+        static BigInteger product(int from, int to) {
+            return product(from, to, Cancellation.NONE);
+        }
+
+        static BigInteger product(int from, int to, Cancellation cancellation) {
+            if (from > to) {
+                return BigInteger.ONE;
+            }
+            if (to - from < LEAF) {
+                cancellation.check();
+                BigInteger result = BigInteger.ONE;
+                long acc = 1;
+                for (int i = from; i <= to; i++) {
+                    if (acc > Long.MAX_VALUE / i) {
+                        result = result.multiply(BigInteger.valueOf(acc));
+                        acc = i;
+                    } else {
+                        acc *= i;
+                    }
+                }
+                return result.multiply(BigInteger.valueOf(acc));
+            }
+            int middle = (from + to) >>> 1;
+            return product(from, middle, cancellation).multiply(product(middle + 1, to, cancellation));
+        }
+
+        /** Parallel variant of {@link #product(int, int)}. */
+        static final class ProductTask extends RecursiveTask<BigInteger> {
+            private static final long serialVersionUID = 1L;
+            private final int from;
+            private final int to;
+            private final Cancellation cancellation;
+
+            ProductTask(int from, int to, Cancellation cancellation) {
+                this.from = from;
+                this.to = to;
+                this.cancellation = cancellation;
+            }
+
+            @Override
+            protected BigInteger compute() {
+                if (to - from < SPLIT) {
+                    return product(from, to, cancellation);
+                }
+                int middle = (from + to) >>> 1;
+                ProductTask low = new ProductTask(from, middle, cancellation);
+                low.fork();
+                BigInteger high = new ProductTask(middle + 1, to, cancellation).compute();
+                return low.join().multiply(high);
+            }
+        }
+    }
+
+    /**
+     * Decimal representation of a {@link BigInteger} produced chunk by chunk,
+     * most significant digits first. The number is recursively split by
+     * powers of ten {@code 10^(2^k)} into halves until they are short enough
+     * to be converted directly. Only the parts not printed yet are kept, the
+     * whole decimal string never exists at once. The powers are computed
+     * once and shared by all conversions.
+     */
+    static final class DecimalChunks implements Iterator<String> {
+        private static final int LEAF = 256;
+        private static final double LOG10_2 = Math.log10(2);
+        private static final List<BigInteger> POWERS = new ArrayList<>();
+
+        private final int chunkSize;
+        private final int capacity;
+        private final ArrayDeque<Part> parts = new ArrayDeque<>();
+        private boolean negative;
+
+        DecimalChunks(BigInteger value, int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.capacity = Math.min(chunkSize, digits(value) + 1) + LEAF;
+            this.negative = value.signum() < 0;
+            this.parts.push(new Part(value.abs(), -1));
+        }
+
+        /**
+         * Converts the whole number at once. Unlike {@link BigInteger#toString()}
+         * on older JDKs, takes sub-quadratic time.
+         */
+        static String format(BigInteger value) {
+            return new DecimalChunks(value, Integer.MAX_VALUE).next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !parts.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (parts.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            StringBuilder sb = new StringBuilder(capacity);
+            if (negative) {
+                sb.append('-');
+                negative = false;
+            }
+            while (!parts.isEmpty() && sb.length() < chunkSize) {
+                Part part = parts.pop();
+                int digits = part.width >= 0 ? part.width : digits(part.value);
+                if (digits <= LEAF) {
+                    String text = part.value.toString();
+                    for (int i = text.length(); i < part.width; i++) {
+                        sb.append('0');
+                    }
+                    sb.append(text);
+                    continue;
+                }
+                int k = 31 - Integer.numberOfLeadingZeros(digits / 2);
+                BigInteger[] split = part.value.divideAndRemainder(power(k));
+                int low = 1 << k;
+                parts.push(new Part(split[1], low));
+                parts.push(new Part(split[0], part.width >= 0 ? part.width - low : -1));
+            }
+            return sb.toString();
+        }
+
+        /** Estimated number of digits, may be one more than the actual count. */
+        private static int digits(BigInteger value) {
+            return (int) (value.bitLength() * LOG10_2) + 1;
+        }
+
+        /** {@code 10^(2^k)} */
+        private static BigInteger power(int k) {
+            synchronized (POWERS) {
+                while (POWERS.size() <= k) {
+                    if (POWERS.isEmpty()) {
+                        POWERS.add(BigInteger.TEN);
+                    } else {
+                        BigInteger last = POWERS.get(POWERS.size() - 1);
+                        POWERS.add(last.multiply(last));
+                    }
+                }
+                return POWERS.get(k);
+            }
+        }
+
+        /** Part of the number to print using exactly {@code width} digits, {@code -1} means no padding. */
+        private static final class Part {
+            final BigInteger value;
+            final int width;
+
+            Part(BigInteger value, int width) {
+                this.value = value;
+                this.width = width;
+            }
+        }
+    }
+#end
+
+    public interface Algorithms {
+#if ($algorithmJava.equals("true"))
+        BigInteger java(int n);
+#end
+#if ($algorithmRuby.equals("true"))
+        String ruby(int n);
+#end
+#if ($algorithmJS.equals("true"))
+        Number js(int n);
+#end
+#if ($algorithmR.equals("true"))
+        Number r(int n);
+#end
+    }
+
+    @FunctionalInterface
+    public interface Computation {
+        public Object compute(Object value);
+    }
+
+    /**
+     * Bounded cache of computed results. Evicts the least recently used
+     * entries once there are more than {@code maxEntries} of them or their
+     * estimated size exceeds {@code maxBytes}. Entries older than
+     * {@code ttl} milliseconds are computed again, zero means no expiration.
+     */
+    static final class ResultCache<V> {
+        private final String name;
+        private final int maxEntries;
+        private final long maxBytes;
+        private final long ttlNanos;
+        private final LinkedHashMap<Integer, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        ResultCache(String name, int maxEntries, long maxBytes, long ttl) {
+            this.name = name;
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        }
+
+        /** Reads limits from {@code cache.<name>.entries}, {@code .bytes} and {@code .ttl} properties. */
+        static <V> ResultCache<V> create(String name) {
+            return new ResultCache<>(name,
+                Integer.getInteger("cache." + name + ".entries", 256),
+                Long.getLong("cache." + name + ".bytes", 16L * 1024 * 1024),
+                Long.getLong("cache." + name + ".ttl", 0L)
+            );
+        }
+
+        V get(int key, IntFunction<V> compute) {
+            synchronized (this) {
+                Entry<V> e = entries.get(key);
+                if (e != null) {
+                    if (ttlNanos == 0 || System.nanoTime() - e.created < ttlNanos) {
+                        hits++;
+                        return e.value;
+                    }
+                    remove(key);
+                }
+                misses++;
+            }
+            V value = compute.apply(key);
+            long size = sizeOf(value);
+            if (maxEntries > 0 && size <= maxBytes) {
+                synchronized (this) {
+                    Entry<V> previous = entries.put(key, new Entry<>(value, size));
+                    if (previous != null) {
+                        bytes -= previous.size;
+                    }
+                    bytes += size;
+                    Iterator<Map.Entry<Integer, Entry<V>>> it = entries.entrySet().iterator();
+                    while (entries.size() > maxEntries || bytes > maxBytes) {
+                        bytes -= it.next().getValue().size;
+                        it.remove();
+                        evictions++;
+                    }
+                }
+            }
+            return value;
+        }
+
+        private void remove(int key) {
+            Entry<V> e = entries.remove(key);
+            bytes -= e.size;
+            evictions++;
+        }
+
+        private static long sizeOf(Object value) {
+#if ($algorithmJava.equals("true"))
+            if (value instanceof BigInteger) {
+                return 32 + ((BigInteger) value).bitLength() / 8;
+            }
+#end
+            if (value instanceof CharSequence) {
+                return 40 + 2L * ((CharSequence) value).length();
+            }
+            return 16;
+        }
+
+        synchronized String stats() {
+            return name + " hits=" + hits + " misses=" + misses + " evictions=" + evictions +
+                " entries=" + entries.size() + " bytes=" + bytes + "\n";
+        }
+
+        private static final class Entry<V> {
+            final V value;
+            final long size;
+            final long created = System.nanoTime();
+
+            Entry(V value, long size) {
+                this.value = value;
+                this.size = size;
+            }
+        }
+    }
+
+    /** Caches results of another {@link Algorithms} implementation, each language separately. */
+    static final class CachingAlgorithms implements Algorithms {
+        private final Algorithms delegate;
+#if ($algorithmJava.equals("true"))
+        private final ResultCache<BigInteger> java = ResultCache.create("java");
+#end
+#if ($algorithmRuby.equals("true"))
+        private final ResultCache<String> ruby = ResultCache.create("ruby");
+#end
+#if ($algorithmJS.equals("true"))
+        private final ResultCache<Number> js = ResultCache.create("js");
+#end
+#if ($algorithmR.equals("true"))
+        private final ResultCache<Number> r = ResultCache.create("r");
+#end
+
+        CachingAlgorithms(Algorithms delegate) {
+            this.delegate = delegate;
+        }
+
+#if ($algorithmJava.equals("true"))
+        @Override
+        public BigInteger java(int n) {
+            return java.get(n, delegate::java);
+        }
+
+#end
+#if ($algorithmRuby.equals("true"))
+        @Override
+        public String ruby(int n) {
+            return ruby.get(n, delegate::ruby);
+        }
+
+#end
+#if ($algorithmJS.equals("true"))
+        @Override
+        public Number js(int n) {
+            return js.get(n, delegate::js);
+        }
+
+#end
+#if ($algorithmR.equals("true"))
+        @Override
+        public Number r(int n) {
+            return r.get(n, delegate::r);
+        }
+
+#end
+        String stats() {
+            StringBuilder sb = new StringBuilder();
+#if ($algorithmJava.equals("true"))
+            sb.append(java.stats());
+#end
+#if ($algorithmRuby.equals("true"))
+            sb.append(ruby.stats());
+#end
+#if ($algorithmJS.equals("true"))
+            sb.append(js.stats());
+#end
+#if ($algorithmR.equals("true"))
+            sb.append(r.stats());
+#end
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Value computed at most once, on first access, even when accessed from
+     * many threads at once. Once initialized, reading costs a single volatile
+     * read. When the factory throws an exception, next access tries again.
+     */
+    static final class Lazy<T> implements Supplier<T> {
+        private Supplier<T> factory;
+        private volatile T value;
+
+        Lazy(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public T get() {
+            T v = value;
+            if (v == null) {
+                synchronized (this) {
+                    v = value;
+                    if (v == null) {
+                        v = factory.get();
+                        value = v;
+                        factory = null;
+                    }
+                }
+            }
+            return v;
+        }
+    }
+
+#if ($algorithmRuby.equals("true") || $algorithmJS.equals("true") || $algorithmR.equals("true"))
+    /*
+     * Sources of the guest factorials, shared by the server and the
+     * benchmarks. The server evaluates them in its only context.
+     * EngineBenchmark runs several contexts on one engine with a cached
+     * Source for each of them, to measure how much the sharing saves.
+     */
+#end
+#if ($algorithmRuby.equals("true"))
+    public static final String RUBY_FACTORIAL =
+        "def fac(n)\n" +
+        "  f = (1..n).reduce(1, :*)\n" +
+        "  f.to_s\n" +
+        "end\n" +
+        "method(:fac)";
+#end
+#if ($algorithmJS.equals("true"))
+    public static final String JS_FACTORIAL =
+        "(function fac(n) {\n" +
+        "    if (n <= 1) return 1;\n" +
+        "    return n * fac(n - 1);\n" +
+        "})\n";
+#end
+#if ($algorithmR.equals("true"))
+    public static final String R_FACTORIAL = "factorial";
+#end
+
+    final class AlgorithmsImpl implements Algorithms {
+#if ($algorithmRuby.equals("true"))
+        private final Lazy<Computation> ruby = new Lazy<>(() -> {
+            Object fn = global.Polyglot().eval("application/x-ruby", RUBY_FACTORIAL);
+            return global.cast(fn, (Computation) null);
+        });
+#end
+#if ($algorithmJS.equals("true"))
+        private final Lazy<Computation> js = new Lazy<>(() -> {
+            Object fn = global.Polyglot().eval("text/javascript", JS_FACTORIAL);
+            return global.cast(fn, (Computation) null);
+        });
+#end
+#if ($algorithmR.equals("true"))
+        private final Lazy<Computation> r = new Lazy<>(() -> {
+            Object fn = global.Polyglot().eval("text/x-r", R_FACTORIAL);
+            return global.cast(fn, (Computation) null);
+        });
+#end
+#if ($algorithmJava.equals("true"))
+        @Override
+        public final BigInteger java(int n) {
+            return factorial(n);
+        }
+#end
+
+#if ($algorithmJS.equals("true"))
+        @Override
+        public final Number js(int n) {
+            return (Number) js.get().compute(n);
+        }
+#end
+
+#if ($algorithmR.equals("true"))
+        @Override
+        public final Number r(int n) {
+            return (Number) r.get().compute(n);
+        }
+#end
+
+#if ($algorithmRuby.equals("true"))
+        @Override
+        public final String ruby(int n) {
+            return (String) ruby.get().compute(n);
+        }
+#end
+    }
 }
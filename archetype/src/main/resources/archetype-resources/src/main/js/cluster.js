@@ -0,0 +1,229 @@
+#*
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *#
+
+/*
+ * Runs the server in several processes sharing the listening socket, so
+ * more than one event loop serves the requests. Options:
+ *   size    - number of processes, defaults to the number of cores
+ *   grace   - milliseconds a retired process gets to finish its requests
+ *             before it is killed, defaults to 10000
+ *   threads - background threads of each process, defaults to the number
+ *             of cores divided by size, so the processes together don't
+ *             start more threads than there are cores. Passed to them as
+ *             POLYGLOT_WORKERS, -Dservices.threads and the parallelism of
+ *             the common fork/join pool, unless those are set already.
+ * A process that dies is replaced. On SIGHUP the processes are replaced one
+ * by one, each only once its replacement reports it is ready, so the server
+ * keeps serving during the rolling restart. The processes talk to this one
+ * by messages:
+ *   {ready : true}          - sent by a process once warmed up
+ *   {metricsRequest : id}   - asks for metrics of all the processes,
+ *                             answered by {metricsResponse : id, text}
+ *   {collectMetrics : id}   - sent to every process, answered by
+ *                             {collectedMetrics : id, text}
+ *   {quit : true}           - sent by a process asked to quit, retires all
+ *                             the processes and then exits this one
+ */
+function NodeClusterPrimary(options) {
+    options = options || {};
+    const cluster = require('cluster');
+    const cores = require('os').cpus().length;
+    const size = options.size > 0 ? options.size : cores;
+    const grace = options.grace > 0 ? options.grace : 10000;
+    const threads = options.threads > 0 ? options.threads : Math.max(1, Math.floor(cores / size));
+    const env = {};
+    if (!process.env.POLYGLOT_WORKERS) {
+        env.POLYGLOT_WORKERS = String(threads);
+    }
+    var javaOptions = process.env.JAVA_TOOL_OPTIONS || '';
+    ['services.threads', 'java.util.concurrent.ForkJoinPool.common.parallelism'].forEach((property) => {
+        if (javaOptions.indexOf('-D' + property + '=') < 0) {
+            javaOptions = (javaOptions + ' -D' + property + '=' + threads).trim();
+        }
+    });
+    env.JAVA_TOOL_OPTIONS = javaOptions;
+    const collections = new Map();
+    var nextCollection = 0;
+    var quitting = false;
+    this.restarting = false;
+
+    function fork() {
+        const worker = cluster.fork(env);
+        worker.on('message', (m) => receive(worker, m));
+        return worker;
+    }
+    function receive(worker, m) {
+        if (m.metricsRequest !== undefined) {
+            collect((text) => {
+                if (worker.isConnected()) {
+                    worker.send({metricsResponse : m.metricsRequest, text});
+                }
+            });
+        } else if (m.quit) {
+            quit();
+        } else if (m.collectedMetrics !== undefined) {
+            const collection = collections.get(m.collectedMetrics);
+            if (collection) {
+                collection.texts.push(m.text);
+                if (collection.texts.length === collection.expected) {
+                    collection.done();
+                }
+            }
+        }
+    }
+    function collect(callback) {
+        const id = nextCollection++;
+        const workers = Object.values(cluster.workers).filter((w) => w.isConnected());
+        const collection = { texts : [], expected : workers.length };
+        const timeout = setTimeout(() => collection.done(), 1000);
+        collection.done = () => {
+            clearTimeout(timeout);
+            collections.delete(id);
+            callback(mergeMetrics(collection.texts));
+        };
+        collections.set(id, collection);
+        workers.forEach((w) => w.send({collectMetrics : id}));
+    }
+    function ready(worker) {
+        return new Promise((resolve, reject) => {
+            worker.on('message', (m) => {
+                if (m.ready) {
+                    resolve();
+                }
+            });
+            worker.on('exit', () => reject(new Error('Process ' + worker.process.pid + ' exited while starting')));
+        });
+    }
+    function quit() {
+        if (quitting) {
+            return;
+        }
+        quitting = true;
+        const workers = Object.values(cluster.workers);
+        var running = workers.length;
+        console.error('Quitting ' + running + ' processes');
+        if (running === 0) {
+            process.exit(0);
+        }
+        workers.forEach((worker) => {
+            worker.on('exit', () => {
+                if (--running === 0) {
+                    process.exit(0);
+                }
+            });
+            retire(worker);
+        });
+    }
+    function retire(worker) {
+        worker.retired = true;
+        const timeout = setTimeout(() => worker.kill(), grace);
+        worker.on('exit', () => clearTimeout(timeout));
+        worker.disconnect();
+    }
+    cluster.on('exit', (worker, code, signal) => {
+        if (worker.retired || quitting) {
+            return;
+        }
+        console.error('Process ' + worker.process.pid + ' died (' + (signal || code) + '), starting a new one');
+        setTimeout(() => {
+            if (!quitting) {
+                fork();
+            }
+        }, 1000);
+    });
+
+    /* Replaces the processes one by one. */
+    this.restart = async function() {
+        if (this.restarting) {
+            return;
+        }
+        this.restarting = true;
+        try {
+            for (const old of Object.values(cluster.workers)) {
+                if (quitting) {
+                    break;
+                }
+                await ready(fork());
+                retire(old);
+            }
+            console.error('Restarted ' + size + ' processes');
+        } catch (error) {
+            console.error('Rolling restart stopped: ' + error.message);
+        }
+        this.restarting = false;
+    };
+
+    process.on('SIGHUP', () => this.restart());
+    for (var i = 0; i < size; i++) {
+        fork();
+    }
+    console.error('Started ' + size + ' processes with ' + threads + ' threads each, send SIGHUP to ' + process.pid + ' to restart them');
+}
+
+/*
+ * Sums the samples of the same series in the Prometheus texts. All of them
+ * are counters or histogram buckets, so the sums are the metrics of the
+ * whole cluster.
+ */
+function mergeMetrics(texts) {
+    const lines = new Map();
+    texts.forEach((text) => text.split('\n').forEach((line) => {
+        if (line === '') {
+            return;
+        }
+        if (line.startsWith('#')) {
+            lines.set(line, null);
+            return;
+        }
+        const space = line.lastIndexOf(' ');
+        const series = line.substring(0, space);
+        lines.set(series, (lines.get(series) || 0) + Number(line.substring(space + 1)));
+    }));
+    var merged = '';
+    lines.forEach((value, series) => {
+        merged += value === null ? series + '\n' : series + ' ' + value + '\n';
+    });
+    return merged;
+}
+
+module.exports = {
+    NodeClusterPrimary : NodeClusterPrimary,
+    mergeMetrics : mergeMetrics
+}
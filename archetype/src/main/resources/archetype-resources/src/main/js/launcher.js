@@ -46,16 +46,83 @@ if (typeof Java === 'undefined') {
 if (typeof Polyglot === 'undefined') {
     throw new 'GraalVM has to define Polyglot global symbol!';
 }
-const Worker = require('./polyglot_worker.js').NodePolyglotWorker;
+#if ($cluster.equals("true"))
+const cluster = require('cluster');
+if (cluster.isMaster && Number.parseInt(process.env.POLYGLOT_CLUSTER) > 0) {
+    const ClusterPrimary = require('./cluster.js').NodeClusterPrimary;
+    new ClusterPrimary({
+        size : Number.parseInt(process.env.POLYGLOT_CLUSTER),
+        grace : Number.parseInt(process.env.POLYGLOT_CLUSTER_GRACE),
+        threads : Number.parseInt(process.env.POLYGLOT_CLUSTER_THREADS)
+    });
+    return;
+}
+#end
+/* Durations of the start-up phases, logged once the warm-up is over. */
+var phases = ['boot ' + (process.uptime() * 1000).toFixed(0) + ' ms'];
+var phaseStart = process.hrtime();
+function phase(name) {
+    var took = process.hrtime(phaseStart);
+    phases.push(name + ' ' + (took[0] * 1e3 + took[1] / 1e6).toFixed(0) + ' ms');
+    phaseStart = process.hrtime();
+}
 
-var executor = new Worker();
 var className = "${package}.Services";
 var servicesClass = Java.type(className);
-var services = new servicesClass(require, global, async (work, finish) => {
+phase('Java.type');
+#if ($serverCode.equals("js") && $algorithmJava.equals("true"))
+const WorkerPool = require('./polyglot_worker.js').NodePolyglotWorkerPool;
+
+var executor = new WorkerPool({
+    size : Number.parseInt(process.env.POLYGLOT_WORKERS),
+    policy : process.env.POLYGLOT_WORKER_POLICY,
+    maxQueue : Number.parseInt(process.env.POLYGLOT_WORKER_QUEUE),
+    batchSize : Number.parseInt(process.env.POLYGLOT_WORKER_BATCH),
+    sharedResults : Number.parseInt(process.env.POLYGLOT_SHARED_RESULTS),
+    heartbeat : Number.parseInt(process.env.POLYGLOT_WORKER_HEARTBEAT),
+    stuckAfter : Number.parseInt(process.env.POLYGLOT_WORKER_STUCK)
+});
+var worker = async (work, finish) => {
     var r = await executor.submit(work);
     finish(r);
+};
+var health = () => executor.health();
+#elseif ($algorithmJava.equals("true"))
+const CompletionPump = require('./polyglot_worker.js').NodeCompletionPump;
+
+var worker = Java.type(className + ".ExecutorWorker").create();
+var pump = new CompletionPump(worker);
+var health = () => {
+    var state = pump.health();
+    return {state : state.state === 'running' ? 'up' : 'down', pump : state, pending : worker.pending()};
+};
+#else
+/* No route computes in the background, so there are no worker threads. */
+var worker = null;
+var health = () => ({state : 'up'});
+#end
+phase('workers');
+var services = new servicesClass(require, global, worker);
+phase('Services');
+services.router().registerExact("/health", (request, response) => {
+    var state = health();
+    response.writeHead(state.state === 'up' ? 200 : 503);
+    response.end(JSON.stringify(state) + "\n");
 });
 global.quit = function() { process.exit() };
+global.defer = function(task) { setImmediate(() => task.run()) };
+global.buffer = function(bytes) { return Buffer.from(bytes) };
+global.configure = function(server, options) {
+    server.keepAliveTimeout = options.keepAliveTimeout();
+    server.headersTimeout = options.headersTimeout();
+    server.maxHeadersCount = options.maxHeadersCount();
+    if (options.maxConnections() > 0) {
+        server.maxConnections = options.maxConnections();
+    }
+    /* set either way, recent node.js versions enable it by default */
+    const noDelay = options.noDelay();
+    server.on('connection', (socket) => socket.setNoDelay(noDelay));
+};
 global.cast = function(value, prototype) {
     if (prototype != null) {
         throw "Use null as prototype, was: " + prototype;
@@ -65,8 +132,11 @@ global.cast = function(value, prototype) {
 #if ($serverCode.equals("js"))
 var algorithms = {
 #if ($algorithmJava.equals("true"))
-    'java' : function(n, worker) {
-        return worker ? worker.submit(services, {method:'factorial', args:[n]}) : services.factorial(n);
+    'java' : function(n, worker, sink, submitted, cancellation) {
+        if (sink) {
+            return worker.submitStream(services, {method:'factorialDigits', args:[n, submitted, cancellation], cancellation}, sink);
+        }
+        return worker ? worker.submit(services, {method:'factorial', args:[n, submitted, cancellation], cancellation}) : services.factorial(n);
     },
 #end
 #if ($algorithmJS.equals("true"))
@@ -78,65 +148,187 @@ var algorithms = {
 #end
 #if ($algorithmRuby.equals("true"))
     'ruby' : function (n) {
-        algorithms.ruby = Polyglot.eval("application/x-ruby",
-            "def fac(n)\n" +
-            "  f = (1..n).reduce(1, :*)\n" +
-            "  f.to_s\n" +
-            "end\n" +
-            "method(:fac)"
-        );
+        algorithms.ruby = Polyglot.eval("application/x-ruby", Java.type(className).RUBY_FACTORIAL);
         return algorithms.ruby(n);
     },
 #end
 #if ($algorithmR.equals("true"))
     'r' : function r(n) {
-        algorithms.r = Polyglot.eval("text/x-r", "factorial");
+        algorithms.r = Polyglot.eval("text/x-r", Java.type(className).R_FACTORIAL);
         return algorithms.r(n);
     },
 #end
 };
 services.postInit(algorithms);
+phase('postInit');
 
 const PORT = 8080;
 
-var http = require("http");
-var server = http.createServer(async (request, response) => {
-    var url = request.url;
-    if (url === "/quit") {
-        response.end("Quiting...\n");
-        global.quit();
-        return;
+var Router = Java.type(className + ".Router");
+var Format = Java.type(className + ".Format");
+var Cancellation = Java.type(className + ".Cancellation");
+var router = services.router();
+var cached = services.getAlgorithms();
+var metrics = services.metrics();
+function send(response, format, value) {
+    response.setHeader('Content-Type', format.contentType());
+    response.end(global.buffer(format.encode(value)));
+}
+router.registerExact("/quit", (request, response) => {
+    response.end("Quiting...\n");
+    var profile = services.profile();
+    if (profile != null) {
+        console.error(profile);
     }
+    global.quit();
+});
 #if ($algorithmJava.equals("true"))
-    if (url.startsWith("/java/")) {
-        var res = await algorithms.java(Number.parseInt(url.substring(6)), executor);
-        response.end(res.toString() + '\n');
+var javaMetrics = metrics.route('java');
+router.register("/java/", async (request, response, url, tail) => {
+    var start = javaMetrics.start();
+    var n = Router.parseInt(url, tail);
+    var format = Format.negotiate(request);
+    var cancellation = Cancellation.forRequest();
+    response.once('close', () => cancellation.cancel());
+    try {
+        if (format !== Format.TEXT) {
+            var result = await algorithms.java(n, executor, null, start, cancellation);
+            var writing = javaMetrics.now();
+            send(response, format, result);
+            javaMetrics.end(start, writing);
+            return;
+        }
+        await algorithms.java(n, executor, response, start, cancellation);
+    } catch (error) {
+        if (error.cancelled) {
+            javaMetrics.end(start);
+            if (cancellation.isTimedOut()) {
+                Router.timedOut(response);
+            }
+            return;
+        }
+        if (!error.busy) {
+            console.error(error);
+            javaMetrics.end(start);
+            if (response.headersSent) {
+                response.destroy();
+            } else {
+                response.writeHead(500);
+                response.end(error + '\n');
+            }
+            return;
+        }
+        javaMetrics.reject();
+        if (response.headersSent) {
+            response.destroy();
+            return;
+        }
+        Router.busy(response);
         return;
     }
+    response.end('\n');
+    javaMetrics.end(start);
+});
 #end
 #if ($algorithmRuby.equals("true"))
-    if (url.startsWith("/ruby/")) {
-        response.end(algorithms.ruby(Number.parseInt(url.substring(6))) + "\n");
-        return;
-    }
+var rubyMetrics = metrics.route('ruby');
+router.register("/ruby/", (request, response, url, tail) => {
+    var start = rubyMetrics.start();
+    var result = cached.ruby(Router.parseInt(url, tail));
+    var writing = rubyMetrics.polyglot(start);
+    response.end(result + "\n");
+    rubyMetrics.end(start, writing);
+});
 #end
 #if ($algorithmJS.equals("true"))
-    if (url.startsWith("/js/")) {
-        response.end(algorithms.js(Number.parseInt(url.substring(4))) + "\n");
-        return;
+var jsMetrics = metrics.route('js');
+router.register("/js/", (request, response, url, tail) => {
+    var start = jsMetrics.start();
+    var result = cached.js(Router.parseInt(url, tail));
+    var writing = jsMetrics.polyglot(start);
+    var format = Format.negotiate(request);
+    if (format !== Format.TEXT) {
+        send(response, format, result);
+    } else {
+        response.end(result + "\n");
     }
+    jsMetrics.end(start, writing);
+});
 #end
 #if ($algorithmR.equals("true"))
-    if (url.startsWith("/r/")) {
-        response.end(algorithms.r(Number.parseInt(url.substring(3))) + "\n");
-        return;
+var rMetrics = metrics.route('r');
+router.register("/r/", (request, response, url, tail) => {
+    var start = rMetrics.start();
+    var result = cached.r(Router.parseInt(url, tail));
+    var writing = rMetrics.polyglot(start);
+    var format = Format.negotiate(request);
+    if (format !== Format.TEXT) {
+        send(response, format, result);
+    } else {
+        response.end(result + "\n");
     }
+    rMetrics.end(start, writing);
+});
 #end
-    response.end("Received: " + url + "\n");
+
+var http = require("http");
+var server = http.createServer((request, response) => {
+    if (!router.dispatch(request, response)) {
+        response.end("Received: " + request.url + "\n");
+    }
 });
-server.listen(PORT);
+var serverOptions = Java.type(className + ".ServerOptions").create();
+global.configure(server, serverOptions);
+server.listen(PORT, serverOptions.backlog());
+phase('listen');
 #else
 services.postInit(null);
+phase('postInit and listen');
+#end
+
+var readyCheck = setInterval(() => {
+    if (!services.isReady()) {
+        return;
+    }
+    clearInterval(readyCheck);
+    phase('warm-up');
+    console.error('Started in ' + (process.uptime() * 1000).toFixed(0) + ' ms: ' + phases.join(', '));
+    if (process.env.POLYGLOT_EXIT_WHEN_READY === 'true') {
+        Java.type('java.lang.System').exit(0);
+    }
+#if ($cluster.equals("true"))
+    if (cluster.isWorker) {
+        process.send({ready : true});
+    }
+#end
+}, 10);
+readyCheck.unref();
+#if ($cluster.equals("true"))
+
+if (cluster.isWorker) {
+    /* Asks the primary process for metrics of the whole cluster. */
+    var metricsRequests = new Map();
+    var nextMetricsRequest = 0;
+    services.router().registerExact("/metrics", (request, response) => {
+        var id = nextMetricsRequest++;
+        metricsRequests.set(id, response);
+        process.send({metricsRequest : id});
+    });
+    process.on('message', (m) => {
+        if (m.collectMetrics !== undefined) {
+            process.send({collectedMetrics : m.collectMetrics, text : services.metrics().prometheus()});
+        } else if (m.metricsResponse !== undefined) {
+            var response = metricsRequests.get(m.metricsResponse);
+            metricsRequests.delete(m.metricsResponse);
+            response.setHeader('Content-Type', 'text/plain; version=0.0.4');
+            response.end(m.text);
+        }
+    });
+    /* Disconnected once retired and all its connections are closed. */
+    process.on('disconnect', () => process.exit(0));
+    /* Quits the whole cluster, otherwise the primary would replace this process. */
+    global.quit = function() { process.send({quit : true}) };
+}
 #end
 
 
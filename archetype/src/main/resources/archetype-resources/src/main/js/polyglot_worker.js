@@ -40,50 +40,662 @@
 
 /* Convenience Node.js worker used to offload Java calls to another thread. */
 
-function NodePolyglotWorker() {
-    const TransferablePromiseCompletion = Java.type("${package}.Services.TransferablePromiseCompletion");
-    const { Worker } = require('worker_threads');
-    this.worker = new Worker(`
-                        const {parentPort} = require('worker_threads');
-                        parentPort.on('message', (m) => {
-                            var {completion, target, options} = m;
-                            var args = [];
-                            if (options) {
-                                args = options.args ? options.args : [];
-                                target = options.method ? target[options.method] : target;
+/* Code of the worker thread run by NodePolyglotWorker. */
+const POLYGLOT_WORKER_CODE = `
+                    const {parentPort, workerData} = require('worker_threads');
+                    const used = workerData.shared ? new Int32Array(workerData.shared, 0, 1) : null;
+                    const data = workerData.shared ? new Uint8Array(workerData.shared, 8) : null;
+                    const status = new Int32Array(workerData.status);
+                    const encoder = new TextEncoder();
+                    var writeIndex = 0;
+                    function cancelled(m) {
+                        return m.options != null && m.options.cancellation != null && m.options.cancellation.isCancelled();
+                    }
+                    function call(m) {
+                        if (cancelled(m)) {
+                            throw new Error('Cancelled');
+                        }
+                        var {target, options} = m;
+                        var args = [];
+                        if (options) {
+                            args = options.args ? options.args : [];
+                            target = options.method ? target[options.method] : target;
+                        }
+                        return Reflect.apply(target, undefined, args);
+                    }
+                    function run(m) {
+                        var {completion, id} = m;
+                        try {
+                            var result = call(m);
+                            return {completion, id, result};
+                        } catch (error) {
+                            return cancelled(m) ? {completion, id, cancelled : true} : {completion, id, error};
+                        }
+                    }
+                    function write(bytes) {
+                        for (var i = 0; i < bytes.length; i++) {
+                            data[writeIndex] = bytes[i];
+                            writeIndex = (writeIndex + 1) % data.length;
+                        }
+                        return bytes.length;
+                    }
+                    function send(text, m) {
+                        var offset = 0;
+                        while (offset < text.length) {
+                            if (cancelled(m)) {
+                                throw new Error('Cancelled');
                             }
-                            try {
-                                var result = Reflect.apply(target, undefined, args);
-                                parentPort.postMessage({completion, result});
-                            } catch (error) {
-                                parentPort.postMessage({completion, error});
+                            var inUse = Atomics.load(used, 0);
+                            var room = Math.min(data.length - inUse, data.length - writeIndex);
+                            var read = 0;
+                            var written = 0;
+                            if (room >= 4) {
+                                var r = encoder.encodeInto(text.substring(offset, offset + room), data.subarray(writeIndex, writeIndex + room));
+                                read = r.read;
+                                written = r.written;
+                                writeIndex = (writeIndex + written) % data.length;
+                            } else {
+                                var length = text.codePointAt(offset) > 0xffff ? 2 : 1;
+                                var bytes = encoder.encode(text.substring(offset, offset + length));
+                                if (data.length - inUse >= bytes.length) {
+                                    read = length;
+                                    written = write(bytes);
+                                }
                             }
-                        });
-            `, {
-                eval: true
-            });
-    this.worker.on('message', function(m) {
+                            if (written === 0) {
+                                Atomics.store(status, 0, 2);
+                                Atomics.wait(used, 0, inUse, workerData.heartbeat);
+                                Atomics.store(status, 0, 1);
+                                continue;
+                            }
+                            offset += read;
+                            Atomics.add(used, 0, written);
+                            parentPort.postMessage({data : written});
+                        }
+                    }
+                    function stream(m) {
+                        try {
+                            var result = call(m);
+                            if (result != null && typeof result.hasNext === 'function') {
+                                while (result.hasNext()) {
+                                    send(String(result.next()), m);
+                                }
+                            } else {
+                                var text = String(result);
+                                if (text.length < workerData.threshold) {
+                                    parentPort.postMessage({stream : true, result : text});
+                                    return;
+                                }
+                                send(text, m);
+                            }
+                            parentPort.postMessage({stream : true});
+                        } catch (error) {
+                            parentPort.postMessage(cancelled(m) ? {stream : true, cancelled : true} : {stream : true, error});
+                        }
+                    }
+                    parentPort.on('message', (m) => {
+                        if (m.ping) {
+                            parentPort.postMessage({pong : true});
+                            return;
+                        }
+                        /* 1 while computing, 2 while waiting for ring space, 0 otherwise */
+                        Atomics.store(status, 0, 1);
+                        try {
+                            if (m.batch) {
+                                parentPort.postMessage({batch : m.batch.map(run)});
+                            } else if (m.stream) {
+                                stream(m);
+                            } else {
+                                parentPort.postMessage(run(m));
+                            }
+                        } finally {
+                            Atomics.store(status, 0, 0);
+                        }
+                    });
+            `;
+
+/*
+ * Options:
+ *   batchSize     - with more than one, submissions made within the same tick
+ *                   are sent to the worker thread as a single message, up to
+ *                   batchSize of them; the results come back in one message
+ *   sharedResults - size in bytes of a SharedArrayBuffer ring used by
+ *                   submitStream to pass large results, 0 turns it off
+ *   streamThreshold - results shorter than that many characters are passed
+ *                   as a message even by submitStream, defaults to 16384
+ *   heartbeat     - milliseconds between pings of the worker thread,
+ *                   defaults to 1000
+ *   stuckAfter    - milliseconds without any message from the worker thread
+ *                   after which it is considered stuck, defaults to 60000.
+ *                   A thread inside a call can't answer pings, but tells
+ *                   it is computing through shared memory. It is never
+ *                   considered stuck, its request cancellation is supposed
+ *                   to stop a computation running too long. A stream not
+ *                   drained for that long is dropped.
+ * The options of submit and submitStream may contain a cancellation, like
+ * Services.Cancellation, with isCancelled() method. Cancelled submissions
+ * aren't started and their promise gets rejected with an error whose
+ * cancelled property is true.
+ *
+ * The worker thread is supervised. When it dies or gets stuck, all its
+ * submissions are rejected with an error whose busy and workerFailed
+ * properties are true. A new thread is started after a delay growing from
+ * 100 ms up to 10 s with each consecutive failure. Meanwhile state is
+ * 'restarting' and submissions are rejected the same way.
+ */
+function NodePolyglotWorker(options) {
+    options = options || {};
+    const TransferablePromiseCompletion = Java.type("${package}.Services.TransferablePromiseCompletion");
+    const { Worker } = require('worker_threads');
+    const self = this;
+    this.outstanding = 0;
+    this.batchSize = options.batchSize > 1 ? options.batchSize : 0;
+    this.pending = [];
+    this.state = 'running';
+    this.restarts = 0;
+    const threshold = options.streamThreshold > 0 ? options.streamThreshold : 16384;
+    const heartbeat = options.heartbeat > 0 ? options.heartbeat : 1000;
+    const stuckAfter = options.stuckAfter > 0 ? options.stuckAfter : 60000;
+    const inflight = new Map();
+    var nextId = 0;
+    var failures = 0;
+    var lastSeen;
+    var shared;
+    var used;
+    var data;
+    var readIndex;
+    var streams;
+    var status;
+    var respawn = null;
+    function spawn() {
+        respawn = null;
+        shared = options.sharedResults > 0 ? new SharedArrayBuffer(8 + options.sharedResults) : null;
+        used = shared ? new Int32Array(shared, 0, 1) : null;
+        data = shared ? new Uint8Array(shared, 8) : null;
+        readIndex = 0;
+        streams = [];
+        status = new Int32Array(new SharedArrayBuffer(4));
+        lastSeen = Date.now();
+        const worker = new Worker(POLYGLOT_WORKER_CODE, {
+            eval: true,
+            workerData : { shared, threshold, heartbeat, status : status.buffer }
+        });
+        worker.on('message', (m) => {
+            if (worker === self.worker) {
+                lastSeen = Date.now();
+                failures = 0;
+                receive(m);
+            }
+        });
+        worker.on('error', (error) => failed(worker, error));
+        worker.on('exit', (code) => failed(worker, new Error('Exited with code ' + code)));
+        self.worker = worker;
+        self.state = 'running';
+    }
+    function failed(worker, error) {
+        if (worker !== self.worker || self.state !== 'running') {
+            return;
+        }
+        self.state = 'restarting';
+        const failure = workerFailedError(error);
+        inflight.forEach((completion) => completion.getPromiseReject()(failure));
+        inflight.clear();
+        streams.forEach((s) => s.reject(failure));
+        streams = [];
+        self.pending = [];
+        self.outstanding = 0;
+        if (self.terminated) {
+            return;
+        }
+        const delay = Math.min(10000, 100 * Math.pow(2, failures++));
+        console.error('Polyglot worker failed: ' + error.message + ', restarting in ' + delay + ' ms');
+        self.restarts++;
+        respawn = setTimeout(spawn, delay);
+    }
+    const watchdog = setInterval(() => {
+        if (self.state !== 'running') {
+            return;
+        }
+        streams.filter((s) => s.paused && Date.now() - s.pausedSince > stuckAfter).forEach((s) => {
+            console.error('Polyglot worker stream waiting for drain ' + (Date.now() - s.pausedSince) + ' ms, dropping it');
+            abort(s);
+            s.sink.destroy();
+            /* the worker thread was silent waiting for this stream */
+            lastSeen = Date.now();
+        });
+        if (Date.now() - lastSeen > stuckAfter && Atomics.load(status, 0) === 0 && !streams.some((s) => s.paused)) {
+            console.error('Polyglot worker silent for ' + (Date.now() - lastSeen) + ' ms, terminating it');
+            self.worker.terminate();
+            return;
+        }
+        self.worker.postMessage({ping : true});
+    }, heartbeat);
+    watchdog.unref();
+
+    function complete(m) {
         const {completion} = m;
-        if (m.error) {
+        inflight.delete(m.id);
+        self.outstanding--;
+        if (m.cancelled) {
+            const reject = completion.getPromiseReject();
+            reject(cancelledError());
+        } else if (m.error) {
             const reject = completion.getPromiseReject();
             reject(m.error);
         } else {
             const resolve = completion.getPromiseResolve();
             resolve(m.result);
         }
-    });
+    }
+    function consume() {
+        while (streams.length > 0) {
+            const s = streams[0];
+            while (s.available > 0) {
+                if (s.paused) {
+                    return;
+                }
+                const length = Math.min(s.available, data.length - readIndex);
+                const chunk = s.aborted ? null : Buffer.from(data.subarray(readIndex, readIndex + length));
+                readIndex = (readIndex + length) % data.length;
+                s.available -= length;
+                Atomics.sub(used, 0, length);
+                Atomics.notify(used, 0);
+                if (chunk !== null && s.sink.write(chunk) === false) {
+                    s.paused = true;
+                    s.pausedSince = Date.now();
+                    s.sink.once('drain', () => {
+                        if (s.paused) {
+                            s.paused = false;
+                            consume();
+                        }
+                    });
+                }
+            }
+            if (!s.ended) {
+                return;
+            }
+            streams.shift();
+            self.outstanding--;
+            if (s.error) {
+                s.reject(s.error);
+            } else if (s.aborted) {
+                s.reject(cancelledError());
+            } else {
+                s.resolve();
+            }
+        }
+    }
+    /*
+     * The sink is gone or doesn't drain. Its remaining data are dropped, so
+     * the worker thread doesn't wait for ring space that is never freed.
+     */
+    function abort(s) {
+        if (s.aborted || streams.indexOf(s) < 0) {
+            return;
+        }
+        s.aborted = true;
+        s.paused = false;
+        consume();
+    }
+    /* the worker thread sends one stream after another, so data belong to the oldest unfinished one */
+    function streaming() {
+        return streams.find((s) => !s.ended);
+    }
+    function receive(m) {
+        if (m.pong) {
+            return;
+        } else if (m.batch) {
+            m.batch.forEach(complete);
+        } else if (m.stream) {
+            const s = streaming();
+            if (m.cancelled) {
+                s.error = cancelledError();
+            } else if (m.error) {
+                s.error = m.error;
+            } else if (m.result !== undefined && !s.aborted) {
+                s.sink.write(m.result);
+            }
+            if (s.error) {
+                /* the rest of a failed result isn't worth waiting for a drain */
+                s.aborted = true;
+                s.paused = false;
+            }
+            s.ended = true;
+            consume();
+        } else if (m.data) {
+            streaming().available += m.data;
+            consume();
+        } else {
+            complete(m);
+        }
+    }
+    spawn();
+    this.flush = function() {
+        if (this.pending.length > 0) {
+            this.worker.postMessage({batch : this.pending});
+            this.pending = [];
+        }
+    };
     this.submit = function(target, options) {
+        if (options && options.cancellation && options.cancellation.isCancelled()) {
+            return Promise.reject(cancelledError());
+        }
+        if (this.state !== 'running') {
+            return Promise.reject(workerFailedError(new Error('Restarting')));
+        }
         const worker = this.worker;
+        this.outstanding++;
         return new Promise(function(resolve, reject) {
             const completion = new TransferablePromiseCompletion(resolve, reject);
-            worker.postMessage({completion, target, options});
+            const id = nextId++;
+            inflight.set(id, completion);
+            if (self.batchSize === 0) {
+                worker.postMessage({completion, id, target, options});
+                return;
+            }
+            self.pending.push({completion, id, target, options});
+            if (self.pending.length === 1) {
+                queueMicrotask(() => self.flush());
+            }
+            if (self.pending.length >= self.batchSize) {
+                self.flush();
+            }
+        });
+    };
+    /*
+     * Computes the result and writes its string form into sink, which is
+     * a writable stream like http.ServerResponse. A result with hasNext()
+     * and next() methods, like java.util.Iterator, is written chunk by chunk,
+     * each produced by the worker thread. Large results travel through the shared ring buffer, from where they
+     * are copied straight into the sink. When the sink asks to wait for
+     * 'drain', the worker thread blocks once the ring is full. The promise
+     * resolves after the last chunk is written. When the sink closes or
+     * fails first, the rest of the result is dropped and the promise is
+     * rejected as cancelled.
+     */
+    this.submitStream = function(target, options, sink) {
+        if (!shared) {
+            return this.submit(target, options).then((result) => writeChunks(self, result, sink, options && options.cancellation));
+        }
+        if (options && options.cancellation && options.cancellation.isCancelled()) {
+            return Promise.reject(cancelledError());
+        }
+        if (this.state !== 'running') {
+            return Promise.reject(workerFailedError(new Error('Restarting')));
+        }
+        const worker = this.worker;
+        this.outstanding++;
+        return new Promise(function(resolve, reject) {
+            const s = {sink, resolve, reject, available : 0};
+            streams.push(s);
+            sink.once('close', () => abort(s));
+            sink.on('error', () => abort(s));
+            worker.postMessage({stream : true, target, options});
         });
     };
+    /* Whether the worker thread waits for a slow client to take a stream. */
+    this.blocked = function() {
+        return Atomics.load(status, 0) === 2 || streams.some((s) => s.paused);
+    };
+    /* State of the worker thread for health checks. */
+    this.health = function() {
+        return {
+            state : this.state,
+            restarts : this.restarts,
+            outstanding : this.outstanding,
+            computing : this.state === 'running' && Atomics.load(status, 0) !== 0,
+            blocked : this.blocked(),
+            silentFor : Date.now() - lastSeen
+        };
+    };
     this.terminate = function() {
+        this.terminated = true;
+        clearInterval(watchdog);
+        clearTimeout(respawn);
         this.worker.terminate();
     };
 }
 
+/*
+ * Error rejecting submissions of a worker thread that died or got stuck.
+ */
+function workerFailedError(cause) {
+    const error = new Error('Polyglot worker failed: ' + cause.message);
+    error.busy = true;
+    error.workerFailed = true;
+    return error;
+}
+
+/*
+ * Error rejecting submissions whose options.cancellation got cancelled
+ * before or while they were computed.
+ */
+function cancelledError() {
+    const error = new Error('Cancelled');
+    error.cancelled = true;
+    return error;
+}
+
+/*
+ * Writes the result into the sink, chunk by chunk if it is an iterator.
+ * The worker thread produces the chunks one at a time, so converting a huge
+ * number doesn't block the event loop, and the next one is asked for only
+ * after 'drain' whenever the sink asks to wait. When the sink closes or
+ * fails first, the iterator is dropped and the promise is rejected as
+ * cancelled.
+ */
+function writeChunks(worker, result, sink, cancellation) {
+    if (result == null || typeof result.hasNext !== 'function') {
+        sink.write(String(result));
+        return Promise.resolve();
+    }
+    return new Promise(function(resolve, reject) {
+        var chunks = result;
+        function stop(error) {
+            if (chunks !== null) {
+                chunks = null;
+                reject(error);
+            }
+        }
+        sink.once('close', () => stop(cancelledError()));
+        sink.on('error', () => stop(cancelledError()));
+        function pump() {
+            if (chunks === null) {
+                return;
+            }
+            if (!chunks.hasNext()) {
+                chunks = null;
+                resolve();
+                return;
+            }
+            worker.submit(chunks, {method : 'next', cancellation}).then((chunk) => {
+                if (chunks === null) {
+                    return;
+                }
+                if (sink.write(String(chunk))) {
+                    pump();
+                } else {
+                    sink.once('drain', pump);
+                }
+            }, stop);
+        }
+        pump();
+    });
+}
+
+/*
+ * Pool of NodePolyglotWorker instances. Options:
+ *   size     - number of worker threads, defaults to the number of cores
+ *   policy   - 'round-robin' (default) or 'least-outstanding'
+ *   maxQueue - max requests outstanding per worker, defaults to 256,
+ *              0 means unlimited
+ *   batchSize, sharedResults, streamThreshold, heartbeat, stuckAfter -
+ *              see NodePolyglotWorker
+ * When every running worker has reached maxQueue, submit returns a promise
+ * rejected with an error whose busy property is true. Workers that are
+ * restarting are skipped.
+ */
+function NodePolyglotWorkerPool(options) {
+    options = options || {};
+    const size = options.size > 0 ? options.size : require('os').cpus().length;
+    const maxQueue = options.maxQueue > 0 ? options.maxQueue : options.maxQueue === 0 ? Infinity : 256;
+    const policy = options.policy || 'round-robin';
+    if (policy !== 'round-robin' && policy !== 'least-outstanding') {
+        throw new Error('Unknown dispatch policy: ' + policy);
+    }
+    this.size = size;
+    this.policy = policy;
+    this.maxQueue = maxQueue;
+    this.workers = [];
+    for (var i = 0; i < size; i++) {
+        this.workers.push(new NodePolyglotWorker(options));
+    }
+    this.next = 0;
+
+    /*
+     * Idle workers are preferred. Workers blocked by a slow client are used
+     * only when all the others are full, so one slow client doesn't hold up
+     * the requests of the others.
+     */
+    this.select = function() {
+        if (this.policy === 'least-outstanding') {
+            return this.least((w) => !w.blocked()) || this.least(() => true);
+        }
+        return this.pick((w) => w.outstanding === 0 && !w.blocked())
+            || this.pick((w) => !w.blocked())
+            || this.pick(() => true);
+    };
+    /* Next running worker with room in its queue that accepted is true for, in round-robin order. */
+    this.pick = function(accepted) {
+        const workers = this.workers;
+        for (var i = 0; i < workers.length; i++) {
+            const index = (this.next + i) % workers.length;
+            const w = workers[index];
+            if (w.state === 'running' && w.outstanding < this.maxQueue && accepted(w)) {
+                this.next = (index + 1) % workers.length;
+                return w;
+            }
+        }
+        return null;
+    };
+    /* Running worker with the fewest outstanding submissions that accepted is true for. */
+    this.least = function(accepted) {
+        var best = null;
+        this.workers.forEach((w) => {
+            if (w.state === 'running' && accepted(w) && (best === null || w.outstanding < best.outstanding)) {
+                best = w;
+            }
+        });
+        return best !== null && best.outstanding < this.maxQueue ? best : null;
+    };
+    this.submit = function(target, options) {
+        const worker = this.select();
+        if (worker === null) {
+            return Promise.reject(this.busy());
+        }
+        return worker.submit(target, options);
+    };
+    this.submitStream = function(target, options, sink) {
+        const worker = this.select();
+        if (worker === null) {
+            return Promise.reject(this.busy());
+        }
+        return worker.submitStream(target, options, sink);
+    };
+    this.busy = function() {
+        const error = new Error('All ' + this.size + ' polyglot workers are busy');
+        error.busy = true;
+        return error;
+    };
+    this.outstanding = function() {
+        return this.workers.reduce((sum, w) => sum + w.outstanding, 0);
+    };
+    /* 'up' while at least one worker is running. */
+    this.health = function() {
+        const workers = this.workers.map((w) => w.health());
+        const state = workers.some((w) => w.state === 'running') ? 'up' : 'down';
+        return {state, workers};
+    };
+    this.terminate = function() {
+        this.workers.forEach((w) => w.terminate());
+    };
+}
+
+/*
+ * Hands finished computations of Services.ExecutorWorker over to the event
+ * loop. A helper thread blocks in takeCompletions() and posts all the
+ * callbacks finished meanwhile, up to 256 of them, in a single message to
+ * the main thread where they get executed. When the helper thread dies it
+ * is started again, after a delay growing from 100 ms up to 10 s with each
+ * consecutive failure; completions wait in the source meanwhile.
+ */
+function NodeCompletionPump(source) {
+    const { Worker } = require('worker_threads');
+    const self = this;
+    this.state = 'running';
+    this.restarts = 0;
+    var failures = 0;
+    function spawn() {
+        const worker = new Worker(`
+                        const {parentPort} = require('worker_threads');
+                        parentPort.once('message', (source) => {
+                            for (;;) {
+                                var tasks = source.takeCompletions(256);
+                                if (tasks === null) {
+                                    break;
+                                }
+                                parentPort.postMessage(tasks);
+                            }
+                            parentPort.close();
+                        });
+            `, {
+                eval: true
+            });
+        worker.on('message', function(tasks) {
+            failures = 0;
+            for (var i = 0; i < tasks.length; i++) {
+                try {
+                    tasks[i].run();
+                } catch (error) {
+                    console.error(error);
+                }
+            }
+        });
+        worker.on('error', (error) => failed(worker, error));
+        worker.on('exit', (code) => {
+            if (code !== 0) {
+                failed(worker, new Error('Exited with code ' + code));
+            } else if (worker === self.worker) {
+                self.state = 'stopped';
+            }
+        });
+        worker.unref();
+        worker.postMessage(source);
+        self.worker = worker;
+        self.state = 'running';
+    }
+    function failed(worker, error) {
+        if (worker !== self.worker || self.state !== 'running') {
+            return;
+        }
+        self.state = 'restarting';
+        const delay = Math.min(10000, 100 * Math.pow(2, failures++));
+        console.error('Completion pump failed: ' + error.message + ', restarting in ' + delay + ' ms');
+        self.restarts++;
+        setTimeout(spawn, delay).unref();
+    }
+    spawn();
+    /* State of the helper thread for health checks. */
+    this.health = function() {
+        return {
+            state : this.state,
+            restarts : this.restarts
+        };
+    };
+}
+
 module.exports = {
-    NodePolyglotWorker : NodePolyglotWorker
+    NodeCompletionPump : NodeCompletionPump,
+    NodePolyglotWorker : NodePolyglotWorker,
+    NodePolyglotWorkerPool : NodePolyglotWorkerPool
 }
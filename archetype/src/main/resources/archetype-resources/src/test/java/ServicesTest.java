@@ -39,11 +39,373 @@
  *#
 package ${package};
 
+#if ($algorithmJava.equals("true"))
+import java.math.BigInteger;
+#end
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+#if ($algorithmJava.equals("true"))
+import java.util.concurrent.CancellationException;
+#end
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+#if ($algorithmJava.equals("true"))
+import java.util.concurrent.RejectedExecutionException;
+#end
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ServicesTest {
 #if ($unitTest.equals("true"))
+    @Test
+    public void testRouterPicksLongestPrefix() {
+        StringBuilder log = new StringBuilder();
+        Services.Router router = new Services.Router();
+        router.register("/a/", (in, out, url, tail) -> log.append("a:").append(Services.Router.parseInt(url, tail)));
+        router.register("/a/b/", (in, out, url, tail) -> log.append("ab:").append(Services.Router.parseInt(url, tail)));
+        router.registerExact("/a", (in, out, url, tail) -> log.append("exact"));
+
+        assertTrue(router.dispatch(request("/a/12"), null));
+        assertTrue(router.dispatch(request("/a/b/34?x=y"), null));
+        assertTrue(router.dispatch(request("/a?x"), null));
+        assertFalse("Exact path doesn't match longer URL", router.dispatch(request("/ab"), null));
+        assertFalse(router.dispatch(request("/b/1"), null));
+        assertEquals("a:12ab:34exact", log.toString());
+    }
+
+    @Test
+    public void testResultCacheEvictsBySizeAndCount() {
+        Services.ResultCache<String> cache = new Services.ResultCache<>("test", 3, 200, 0);
+        int[] computed = { 0 };
+        IntFunction<String> compute = (n) -> {
+            computed[0]++;
+            return "x" + n;
+        };
+        cache.get(1, compute);
+        cache.get(1, compute);
+        assertEquals("Computed once", 1, computed[0]);
+        cache.get(2, compute);
+        cache.get(3, compute);
+        cache.get(4, compute);
+        assertEquals("test hits=1 misses=4 evictions=1 entries=3 bytes=132\n", cache.stats());
+        cache.get(5, (n) -> new String(new char[70]));
+        assertEquals("Big value evicts the rest", "test hits=1 misses=5 evictions=4 entries=1 bytes=180\n", cache.stats());
+    }
+
+    @Test
+    public void testLazyInitializesOnceUnderContention() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        Services.Lazy<Object> lazy = new Services.Lazy<>(() -> {
+            created.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return new Object();
+        });
+        final int threads = 32;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> values = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            values.add(pool.submit(() -> {
+                start.await();
+                return lazy.get();
+            }));
+        }
+        start.countDown();
+        Object first = values.get(0).get();
+        for (Future<Object> v : values) {
+            assertSame("All threads see the same value", first, v.get());
+        }
+        pool.shutdown();
+        assertEquals("Created once", 1, created.get());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testRouterParseIntRejectsOverflow() {
+        Services.Router.parseInt("/java/2147483648", 6);
+    }
+
+    @Test
+    public void testFormatNegotiation() {
+        assertSame(Services.Format.TEXT, Services.Format.negotiate(request("/js/5")));
+        assertSame(Services.Format.BINARY, Services.Format.negotiate(request("/js/5?format=binary")));
+        assertSame(Services.Format.VARINT, Services.Format.negotiate(request("/js/5?x=1&format=VARINT")));
+        assertSame("Unknown format", Services.Format.TEXT, Services.Format.negotiate(request("/js/5?format=xml")));
+        assertSame("Not a format parameter", Services.Format.TEXT, Services.Format.negotiate(request("/js/5?reformat=binary")));
+        assertSame(Services.Format.BINARY, Services.Format.negotiate(request("/js/5", "application/octet-stream, */*;q=0.1")));
+        assertSame(Services.Format.VARINT, Services.Format.negotiate(request("/js/5", "application/x-varint")));
+        assertSame("Query parameter wins", Services.Format.TEXT, Services.Format.negotiate(request("/js/5?format=text", "application/x-varint")));
+    }
+
+    @Test
+    public void testNumberEncoding() {
+        byte[] binary = Services.Format.BINARY.encode(6.0);
+        assertEquals(8, binary.length);
+        assertEquals(6.0, ByteBuffer.wrap(binary).getDouble(), 0.0);
+        byte[] varint = Services.Format.VARINT.encode(6);
+        assertEquals("Length prefix", 8, varint[0]);
+        assertEquals(6.0, ByteBuffer.wrap(varint, 1, 8).getDouble(), 0.0);
+    }
+
+    @Test
+    public void testRouterLimitsConcurrentRequests() {
+        Services.Router router = new Services.Router();
+        AtomicInteger handled = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        router.register("/slow/", (in, out, url, tail) -> handled.incrementAndGet());
+        router.limit("/slow/", 2, rejected::incrementAndGet);
+        Response first = new Response();
+        Response second = new Response();
+        Response third = new Response();
+        assertTrue(router.dispatch(request("/slow/1"), first));
+        assertTrue(router.dispatch(request("/slow/2"), second));
+        assertTrue(router.dispatch(request("/slow/3"), third));
+        assertEquals(2, handled.get());
+        assertEquals(1, rejected.get());
+        assertEquals(503, third.status);
+        assertEquals("1", third.headers.get("Retry-After"));
+        first.emit("finish");
+        first.emit("close");
+        Response fourth = new Response();
+        assertTrue(router.dispatch(request("/slow/4"), fourth));
+        assertEquals("Released once, so still at the limit", 3, handled.get());
+        Response fifth = new Response();
+        assertTrue(router.dispatch(request("/slow/5"), fifth));
+        assertEquals(503, fifth.status);
+    }
+
+    private static final class Response implements Services.ServerResponse {
+        int status = 200;
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, List<Runnable>> listeners = new HashMap<>();
+
+        @Override
+        public void writeHead(int statusCode) {
+            status = statusCode;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public boolean write(String chunk) {
+            return true;
+        }
+
+        @Override
+        public void once(String event, Runnable listener) {
+            listeners.computeIfAbsent(event, (e) -> new ArrayList<>()).add(listener);
+        }
+
+        @Override
+        public void end(String text) {
+        }
+
+        @Override
+        public void end(Object data) {
+        }
+
+        void emit(String event) {
+            List<Runnable> registered = listeners.remove(event);
+            if (registered != null) {
+                registered.forEach(Runnable::run);
+            }
+        }
+    }
+
+    @Test
+    public void testServerOptions() {
+        Services.ServerOptions options = Services.ServerOptions.create();
+        assertTrue(options.headersTimeout() > options.keepAliveTimeout());
+        assertTrue(options.noDelay());
+        assertEquals(0, options.maxConnections());
+        try {
+            new Services.ServerOptions(5000, 5000, 100, 511, true, 0);
+            fail("headersTimeout has to exceed keepAliveTimeout");
+        } catch (IllegalArgumentException ex) {
+            // OK
+        }
+        assertEquals(0, new Services.ServerOptions(0, 0, 100, 511, false, 0).keepAliveTimeout());
+    }
+
+    @Test
+    public void testCancellationDeadline() throws Exception {
+        Services.Cancellation none = Services.Cancellation.forRequest();
+        assertFalse(none.isCancelled());
+        Services.Cancellation deadline = Services.Cancellation.withTimeout(1);
+        Thread.sleep(5);
+        assertTrue(deadline.isTimedOut());
+        assertTrue(deadline.isCancelled());
+        Services.Cancellation.NONE.cancel();
+        assertFalse("NONE can't be cancelled", Services.Cancellation.NONE.isCancelled());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, Services.Histogram.index(0));
+        assertEquals(0, Services.Histogram.index(1023));
+        assertEquals(1, Services.Histogram.index(1024));
+        assertEquals(Services.Histogram.BUCKETS, Services.Histogram.index(Long.MAX_VALUE));
+        for (int i = 0; i < Services.Histogram.BUCKETS; i++) {
+            long bound = Services.Histogram.bound(i);
+            assertEquals("Bound is exclusive", i + 1, Services.Histogram.index(bound));
+            assertEquals(i, Services.Histogram.index(bound - 1));
+        }
+    }
+
+    @Test
+    public void testMetricsInPrometheusFormat() {
+        Services.Metrics metrics = new Services.Metrics();
+        Services.RouteMetrics route = metrics.route("js");
+        assertSame(route, metrics.route("js"));
+        long start = route.start();
+        route.end(start, route.polyglot(start));
+        String text = metrics.prometheus();
+        assertTrue(text, text.contains("services_requests_total{route=\"js\"} 1\n"));
+        assertTrue(text, text.contains("# TYPE services_request_seconds histogram\n"));
+        assertTrue(text, text.contains("services_request_seconds_bucket{route=\"js\",le=\"+Inf\"} 1\n"));
+        assertTrue(text, text.contains("services_polyglot_seconds_count{route=\"js\"} 1\n"));
+        assertTrue(text, text.contains("services_queued_seconds_count{route=\"js\"} 0\n"));
+        assertEquals(1, route.histogram(3).count());
+    }
+
+    @Test
+    public void testBoundaryProfilerCountsCrossings() {
+        Object fn = new Object();
+        Services.Global global = new Services.Global() {
+            @Override
+            public Services.Polyglot Polyglot() {
+                return new Services.Polyglot() {
+                    @Override
+                    public Object eval(String mimeType, String code) {
+                        return fn;
+                    }
+
+                    @Override
+                    public void export(String name, Object obj) {
+                    }
+                };
+            }
+
+            @Override
+            public void quit() {
+            }
+
+            @Override
+            public Services.Http cast(Object value, Services.Http prototype) {
+                return null;
+            }
+
+            @Override
+            public Services.Server cast(Object value, Services.Server prototype) {
+                return null;
+            }
+
+            @Override
+            public Services.Computation cast(Object value, Services.Computation prototype) {
+                assertSame(fn, value);
+                return (n) -> (Integer) n * 2;
+            }
+
+            @Override
+            public void defer(Runnable task) {
+            }
+
+            @Override
+            public Object buffer(byte[] bytes) {
+                return bytes;
+            }
+
+            @Override
+            public void configure(Services.Server server, Services.ServerOptions options) {
+            }
+        };
+        Services.BoundaryProfiler profiler = new Services.BoundaryProfiler();
+        Services.Global profiled = profiler.wrap(global);
+        Object evaluated = profiled.Polyglot().eval("text/javascript", "(n) => n * 2");
+        Services.Computation computation = profiled.cast(evaluated, (Services.Computation) null);
+        assertEquals(6, computation.compute(3));
+        assertEquals(8, computation.compute(4));
+        assertEquals(2, profiler.site("Computation[text/javascript] -> Integer").calls.get());
+        assertEquals(1, profiler.site("Global.cast(Computation)").calls.get());
+        assertEquals(1, profiler.site("Polyglot.eval[text/javascript]").calls.get());
+        assertTrue(profiler.summary(), profiler.summary().contains("Computation[text/javascript] -> Integer"));
+    }
+
+#if ($algorithmJava.equals("true"))
+    @Test
+    public void testBoundaryProfilerTimesAlgorithms() {
+        Services.BoundaryProfiler profiler = new Services.BoundaryProfiler();
+        Services.Algorithms algorithms = profiler.wrap(new Services.Algorithms() {
+            @Override
+            public BigInteger java(int n) {
+                return BigInteger.valueOf(n);
+            }
+#if ($algorithmRuby.equals("true"))
+
+            @Override
+            public String ruby(int n) {
+                return String.valueOf(n);
+            }
+#end
+#if ($algorithmJS.equals("true"))
+
+            @Override
+            public Number js(int n) {
+                return n;
+            }
+#end
+#if ($algorithmR.equals("true"))
+
+            @Override
+            public Number r(int n) {
+                return n;
+            }
+#end
+        });
+        assertEquals(BigInteger.valueOf(5), algorithms.java(5));
+        assertEquals(1, profiler.site("Algorithms.java").calls.get());
+    }
+
+#end
+    private static Services.IncommingMessage request(String url) {
+        return request(url, null);
+    }
+
+    private static Services.IncommingMessage request(String url, String accept) {
+        return new Services.IncommingMessage() {
+            @Override
+            public String url() {
+                return url;
+            }
+
+            @Override
+            public Map<String, Object> headers() {
+                return accept == null ? Collections.emptyMap() : Collections.singletonMap("accept", accept);
+            }
+        };
+    }
+
 #if ($algorithmJava.equals("true"))
     @Test
     public void testJavaFactorial() {
@@ -51,6 +413,249 @@ public class ServicesTest {
         assertEquals("Factorial of 3", 6, n.intValue());
     }
 
+    @Test
+    public void testFactorialResumesFromCheckpoint() {
+        Services.Factorial factorial = new Services.Factorial(2, 10, Integer.MAX_VALUE);
+        assertEquals(loopFactorial(300), factorial.compute(300));
+        assertEquals(loopFactorial(500), factorial.compute(500));
+        assertEquals("Resumed from 300", loopFactorial(400), factorial.compute(400));
+        assertEquals("Only two checkpoints kept", 2, factorial.checkpoints());
+        assertEquals("Below checkpoint limit", loopFactorial(9), factorial.compute(9));
+        assertEquals("Still two checkpoints kept", 2, factorial.checkpoints());
+        assertEquals(BigInteger.ONE, factorial.compute(0));
+    }
+
+    @Test
+    public void testParallelFactorial() {
+        Services.Factorial parallel = new Services.Factorial(0, Integer.MAX_VALUE, 1000);
+        assertEquals(loopFactorial(12345), parallel.compute(12345));
+        assertEquals(loopFactorial(999), parallel.compute(999));
+    }
+
+    private static BigInteger loopFactorial(int n) {
+        BigInteger result = BigInteger.ONE;
+        for (int i = 2; i <= n; i++) {
+            result = result.multiply(BigInteger.valueOf(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void testDecimalChunksMatchToString() {
+        BigInteger big = loopFactorial(3000);
+        BigInteger[] values = {
+            BigInteger.ZERO, BigInteger.valueOf(7), big, big.negate(),
+            BigInteger.TEN.pow(2048), BigInteger.TEN.pow(2048).subtract(BigInteger.ONE)
+        };
+        for (BigInteger value : values) {
+            StringBuilder sb = new StringBuilder();
+            Iterator<String> chunks = new Services.DecimalChunks(value, 1000);
+            while (chunks.hasNext()) {
+                String chunk = chunks.next();
+                assertTrue("Chunk not much bigger than requested: " + chunk.length(), chunk.length() < 1000 + 512);
+                assertTrue("Only the last chunk is short", chunk.length() >= 1000 || !chunks.hasNext());
+                sb.append(chunk);
+            }
+            assertEquals(value.toString(), sb.toString());
+        }
+    }
+
+    @Test
+    public void testBigIntegerEncoding() {
+        BigInteger big = loopFactorial(300).negate();
+        byte[] binary = Services.Format.BINARY.encode(big);
+        assertEquals(big, new BigInteger(binary));
+        byte[] varint = Services.Format.VARINT.encode(big);
+        assertTrue("Needs two byte prefix: " + binary.length, binary.length >= 128);
+        assertEquals(binary.length, (varint[0] & 0x7f) | (varint[1] << 7));
+        assertEquals(big, new BigInteger(Arrays.copyOfRange(varint, 2, varint.length)));
+    }
+
+    @Test
+    public void testWriteChunksWaitsForDrain() {
+        ChunkedResponse out = new ChunkedResponse();
+        AtomicInteger done = new AtomicInteger();
+        Services.writeChunks(Arrays.asList("1", "2", "3").iterator(), out, done::incrementAndGet);
+        assertEquals(Arrays.asList("1", "2"), out.written);
+        assertEquals("Not done yet", 0, done.get());
+        out.drain.remove(0).run();
+        assertEquals(Arrays.asList("1", "2", "3", "\n"), out.written);
+        assertEquals("Done once", 1, done.get());
+        assertTrue("No more waiting", out.drain.isEmpty());
+        out.close.remove(0).run();
+        assertEquals("Still done once", 1, done.get());
+    }
+
+    @Test
+    public void testWriteChunksOnWorkerStopsOnClose() throws Exception {
+        Services.ExecutorWorker worker = Services.ExecutorWorker.create("forkjoin");
+        ChunkedResponse out = new ChunkedResponse();
+        AtomicInteger done = new AtomicInteger();
+        Iterator<String> chunks = Arrays.asList("1", "2", "3").iterator();
+        Services.writeChunks(worker, chunks, out, done::incrementAndGet);
+        assertTrue("Nothing written on the caller thread", out.written.isEmpty());
+        worker.takeCompletion().run();
+        worker.takeCompletion().run();
+        assertEquals(Arrays.asList("1", "2"), out.written);
+        out.close.remove(0).run();
+        assertEquals("Done when closed", 1, done.get());
+        out.drain.remove(0).run();
+        assertEquals("Nothing produced after close", 0, worker.pending());
+        assertTrue("Last chunk not taken", chunks.hasNext());
+        assertEquals(Arrays.asList("1", "2"), out.written);
+        assertEquals("Done once", 1, done.get());
+        worker.shutdown();
+    }
+
+    private static final class ChunkedResponse implements Services.ServerResponse {
+        final List<String> written = new ArrayList<>();
+        final List<Runnable> drain = new ArrayList<>();
+        final List<Runnable> close = new ArrayList<>();
+
+        @Override
+        public void writeHead(int statusCode) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+        }
+
+        @Override
+        public boolean write(String chunk) {
+            written.add(chunk);
+            return written.size() % 2 != 0;
+        }
+
+        @Override
+        public void once(String event, Runnable listener) {
+            if ("close".equals(event)) {
+                close.add(listener);
+            } else {
+                assertEquals("drain", event);
+                drain.add(listener);
+            }
+        }
+
+        @Override
+        public void end(String text) {
+            written.add(text);
+        }
+
+        @Override
+        public void end(Object data) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void testExecutorWorkerFinishesOnCallerThread() throws Exception {
+        Services.ExecutorWorker worker = Services.ExecutorWorker.create("forkjoin");
+        Thread[] finishedIn = { null };
+        Integer[] result = { null };
+        worker.submit(() -> 4 * 3 * 2, (r) -> {
+            finishedIn[0] = Thread.currentThread();
+            result[0] = r;
+        });
+        worker.takeCompletion().run();
+        assertEquals("Factorial of 4", 24, result[0].intValue());
+        assertEquals("Finished in the thread taking completions", Thread.currentThread(), finishedIn[0]);
+        worker.shutdown();
+        assertNull("No more completions", worker.takeCompletion());
+    }
+
+    @Test
+    public void testExecutorWorkerPassesFailures() throws Exception {
+        Services.ExecutorWorker worker = Services.ExecutorWorker.create("forkjoin");
+        List<Object> finished = new ArrayList<>();
+        worker.submit(() -> {
+            throw new IllegalStateException("Broken");
+        }, finished::add, (ex) -> finished.add(ex.getMessage()));
+        worker.takeCompletion().run();
+        assertEquals(Arrays.asList("Broken"), finished);
+        worker.shutdown();
+    }
+
+    @Test
+    public void testExecutorWorkerBatchesCompletions() throws Exception {
+        Services.ExecutorWorker worker = Services.ExecutorWorker.create("forkjoin");
+        CountDownLatch finished = new CountDownLatch(3);
+        List<Integer> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            worker.submit(() -> {
+                finished.countDown();
+                return n;
+            }, results::add);
+        }
+        finished.await();
+        while (worker.pending() > 0) {
+            Runnable[] batch = worker.takeCompletions(2);
+            assertTrue("At most two at once", batch.length <= 2);
+            for (Runnable r : batch) {
+                r.run();
+            }
+        }
+        Collections.sort(results);
+        assertEquals(Arrays.asList(0, 1, 2), results);
+        worker.shutdown();
+        assertNull("No more completions", worker.takeCompletions(2));
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancelledFactorialGivesUp() {
+        Services.Factorial factorial = new Services.Factorial(0, Integer.MAX_VALUE, 1000);
+        Services.Cancellation cancellation = Services.Cancellation.create();
+        cancellation.cancel();
+        factorial.compute(5000, cancellation);
+    }
+
+    @Test
+    public void testExecutorWorkerSkipsCancelledWork() throws Exception {
+        Services.ExecutorWorker worker = Services.ExecutorWorker.create("forkjoin");
+        Services.Cancellation cancellation = Services.Cancellation.create();
+        cancellation.cancel();
+        AtomicInteger computed = new AtomicInteger();
+        Object[] result = { "not finished" };
+        worker.submit(() -> computed.incrementAndGet(), (r) -> result[0] = r, cancellation);
+        worker.takeCompletion().run();
+        assertNull("Finished with null", result[0]);
+        assertEquals("Not computed at all", 0, computed.get());
+        Services.Cancellation running = Services.Cancellation.withTimeout(60000);
+        worker.submit(() -> Services.Cancellation.current(), (r) -> result[0] = r, running);
+        worker.takeCompletion().run();
+        assertSame("Cancellation available to the computation", running, result[0]);
+        worker.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testExecutorWorkerRejectsOverLimit() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Services.ExecutorWorker worker = new Services.ExecutorWorker(executor, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        worker.submit(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return 1;
+        }, (r) -> {});
+        worker.submit(() -> 2, (r) -> {});
+        try {
+            worker.submit(() -> 3, (r) -> {});
+            fail("Third submission is over the limit");
+        } catch (RejectedExecutionException ex) {
+            // OK
+        }
+        assertEquals(2, worker.pending());
+        blocked.countDown();
+        worker.takeCompletion().run();
+        assertEquals(1, worker.pending());
+        worker.submit(() -> 3, (r) -> {});
+        assertEquals(2, worker.pending());
+        worker.shutdown();
+    }
+
 #end
 #if ($algorithmRuby.equals("true"))
     @Test
@@ -62,9 +62,11 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -99,6 +101,15 @@ public abstract class AbstractChecker {
         String projectName, CountDownLatch cdl, Exception[] error,
         int[] port,
         boolean java, boolean js, boolean ruby, boolean r, boolean unitTest
+    ) throws IOException, VerificationException {
+        return createAndExec(projectName, cdl, error, port, java, js, ruby, r, unitTest, Collections.emptyMap());
+    }
+
+    private Verifier createAndExec(
+        String projectName, CountDownLatch cdl, Exception[] error,
+        int[] port,
+        boolean java, boolean js, boolean ruby, boolean r, boolean unitTest,
+        Map<String, String> env
     ) throws IOException, VerificationException {
         skipWithoutLanguage("js");
         if (ruby) skipWithoutLanguage("ruby");
@@ -144,6 +155,7 @@ public abstract class AbstractChecker {
         assertTrue("nbactions.xml created", nbactions.isFile());
 
         Verifier mvnProject = new Maven(projectDir.getPath());
+        mvnProject.getEnvironmentVariables().putAll(env);
         Executors.newSingleThreadExecutor().submit(() -> {
             boolean again;
             int retries = 10;
@@ -328,6 +340,56 @@ public abstract class AbstractChecker {
         assertQuit(cdl, error, prefix, mvnProject);
     }
 
+    @Test
+    public void loadTest() throws Exception {
+        assumeTrue("Load test is enabled by -DloadTest=true", Boolean.getBoolean("loadTest"));
+        boolean ruby = isLanguageAvailable("ruby");
+        boolean r = isLanguageAvailable("r");
+
+        VerificationException[] error = { null, null };
+        int[] prefix = { 0 };
+        CountDownLatch cdl = new CountDownLatch(1);
+
+        // measure whole computations, not lookups in the result caches or resumed factorial checkpoints
+        Map<String, String> env = Collections.singletonMap("JAVA_TOOL_OPTIONS",
+            "-Dcache.java.entries=0 -Dcache.js.entries=0 -Dcache.ruby.entries=0 -Dcache.r.entries=0"
+            + " -Dfactorial.checkpoints=0"
+        );
+        Verifier mvnProject = createAndExec("loadTest", cdl, error, prefix, true, true, ruby, r, false, env);
+        assertUrl(prefix, "/java/5", "120\n", cdl, mvnProject);
+
+        List<LoadGenerator.Route> routes = new ArrayList<>();
+        routes.add(new LoadGenerator.Route("java", "/java/", 300, 700, 4));
+        routes.add(new LoadGenerator.Route("js", "/js/", 10, 170, 4));
+        if (ruby) {
+            routes.add(new LoadGenerator.Route("ruby", "/ruby/", 10, 50, 1));
+        }
+        if (r) {
+            routes.add(new LoadGenerator.Route("r", "/r/", 5, 20, 1));
+        }
+        LoadGenerator load = new LoadGenerator("localhost", prefix[0], Integer.getInteger("loadClients", 8), routes);
+        LoadGenerator.Report report = load.run(Integer.getInteger("loadSeconds", 20), TimeUnit.SECONDS);
+        CONSOLE.log(Level.INFO, "Load test of {0} server:\n{1}", new Object[]{serverCode(), report});
+
+        File results = new File(new File(System.getProperty("basedir"), "target"), "load-baseline-" + serverCode() + ".properties");
+        report.store(results);
+
+        String baselineName = "load-baseline-" + serverCode() + ".properties";
+        Properties baseline = new Properties();
+        try (InputStream is = AbstractChecker.class.getResourceAsStream(baselineName)) {
+            if (is == null) {
+                CONSOLE.log(Level.WARNING, "No {0} baseline, checking error rates only. Copy {1} to src/test/resources to create one.", new Object[]{baselineName, results});
+            } else {
+                baseline.load(is);
+            }
+        }
+        double tolerance = Double.parseDouble(System.getProperty("loadTolerance", "0.25"));
+        List<String> regressions = report.compare(baseline, tolerance);
+        assertTrue("Performance regressions:\n" + String.join("\n", regressions) + "\n" + report, regressions.isEmpty());
+
+        assertQuit(cdl, error, prefix, mvnProject);
+    }
+
     private static void assertQuit(CountDownLatch cdl, VerificationException[] error, int[] prefix, Verifier mvnProject)
     throws IOException, VerificationException, InterruptedException {
         assertUrl(prefix, "/quit", "Quiting...\n", cdl, mvnProject);
@@ -520,14 +582,29 @@ public abstract class AbstractChecker {
     }
 
     private void skipWithoutLanguage(String id) {
+        StringBuilder sb = new StringBuilder();
+        final boolean successful = isLanguageAvailable(id, sb);
+        if (!successful) {
+            for (String lang : System.getProperty("hasLanguages", "").split(",")) {
+                if (id.matches(lang)) {
+                    fail("Language " + id + " should be present, but:\n" + sb);
+                }
+            }
+        }
+        assumeTrue("Evaluation with " + id + " wasn't successful: " + sb, successful);
+    }
+
+    private static boolean isLanguageAvailable(String id) {
+        return isLanguageAvailable(id, new StringBuilder());
+    }
+
+    private static boolean isLanguageAvailable(String id, StringBuilder sb) {
         String javaHome = System.getProperty("java.home");
         assertNotNull("java.home property must be available", javaHome);
         File jre = new File(javaHome);
         File node = new File(new File(jre, "bin"), "node");
         assertTrue("Missing " + node + " use -Dgraalvm=... to point to GraalVM 1.0 and newer installations", node.exists());
 
-        StringBuilder sb = new StringBuilder();
-
         try {
             ProcessBuilder pb = new ProcessBuilder(node.getPath(), "--polyglot", "-e", "console.log(Polyglot.eval('" + id + "', '42'))");
             Process p = pb.start();
@@ -538,15 +615,7 @@ public abstract class AbstractChecker {
             throw new AssertionError(ex);
         }
 
-        final boolean successful = "42\n".equals(sb.toString());
-        if (!successful) {
-            for (String lang : System.getProperty("hasLanguages", "").split(",")) {
-                if (id.matches(lang)) {
-                    fail("Language " + id + " should be present, but:\n" + sb);
-                }
-            }
-        }
-        assumeTrue("Evaluation with " + id + " wasn't successful: " + sb, successful);
+        return "42\n".equals(sb.toString());
     }
 
     private static void readFully(InputStream in, StringBuilder sb) throws IOException {
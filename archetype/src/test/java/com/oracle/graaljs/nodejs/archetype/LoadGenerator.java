@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2017 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The Universal Permissive License (UPL), Version 1.0
+ *
+ * Subject to the condition set forth below, permission is hereby granted to any
+ * person obtaining a copy of this software, associated documentation and/or data
+ * (collectively the "Software"), free of charge and under any and all copyright
+ * rights in the Software, and any and all patent rights owned or freely
+ * licensable by each licensor hereunder covering either (i) the unmodified
+ * Software as contributed to or provided by such licensor, or (ii) the Larger
+ * Works (as defined below), to deal in both
+ *
+ * (a) the Software, and
+ *
+ * (b) any piece of software and/or hardware listed in the lrgrwrks.txt file if
+ * one is included with the Software each a "Larger Work" to which the Software
+ * is contributed by such licensors),
+ *
+ * without restriction, including without limitation the rights to copy, create
+ * derivative works of, display, perform, and distribute the Software and make,
+ * use, sell, offer for sale, import, export, have made, and have sold the
+ * Software and the Larger Work(s), and to sublicense the foregoing rights on
+ * either these or other terms.
+ *
+ * This license is subject to the following condition:
+ *
+ * The above copyright notice and either this complete permission notice or at a
+ * minimum a reference to the UPL must be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oracle.graaljs.nodejs.archetype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a number of concurrent HTTP clients issuing a weighted mix of
+ * requests against the generated server and collects per route statistics.
+ */
+final class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final List<Route> routes;
+
+    LoadGenerator(String host, int port, int clients, List<Route> routes) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.routes = routes;
+    }
+
+    Report run(long duration, TimeUnit unit) throws Exception {
+        int totalWeight = 0;
+        for (Route r : routes) {
+            totalWeight += r.weight;
+        }
+        final int weights = totalWeight;
+        final long start = System.nanoTime();
+        final long end = start + unit.toNanos(duration);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Map<String, Stats>>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final Random random = new Random(i);
+            results.add(pool.submit(() -> {
+                Map<String, Stats> stats = new LinkedHashMap<>();
+                for (Route r : routes) {
+                    stats.put(r.name, new Stats());
+                }
+                byte[] buffer = new byte[8192];
+                while (System.nanoTime() < end) {
+                    Route route = pick(random.nextInt(weights));
+                    String path = route.path + (route.from + random.nextInt(route.to - route.from + 1));
+                    long before = System.nanoTime();
+                    boolean ok = request(path, buffer);
+                    stats.get(route.name).add(System.nanoTime() - before, ok);
+                }
+                return stats;
+            }));
+        }
+        Map<String, Stats> all = new LinkedHashMap<>();
+        for (Route r : routes) {
+            all.put(r.name, new Stats());
+        }
+        for (Future<Map<String, Stats>> f : results) {
+            for (Map.Entry<String, Stats> e : f.get().entrySet()) {
+                all.get(e.getKey()).addAll(e.getValue());
+            }
+        }
+        pool.shutdown();
+        return new Report(all, System.nanoTime() - start);
+    }
+
+    private Route pick(int value) {
+        for (Route r : routes) {
+            value -= r.weight;
+            if (value < 0) {
+                return r;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private boolean request(String path, byte[] buffer) {
+        try {
+            URL u = new URL("http", host, port, path);
+            HttpURLConnection conn = (HttpURLConnection) u.openConnection(Proxy.NO_PROXY);
+            conn.setConnectTimeout(3000);
+            conn.setReadTimeout(30000);
+            int code = conn.getResponseCode();
+            try (InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                if (is != null) {
+                    while (is.read(buffer) != -1) {
+                    }
+                }
+            }
+            return code == 200;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Requests {@code path} followed by a random number from {@code from}
+     * to {@code to} inclusive, so the server can't just repeat one answer.
+     */
+    static final class Route {
+        final String name;
+        final String path;
+        final int from;
+        final int to;
+        final int weight;
+
+        Route(String name, String path, int from, int to, int weight) {
+            this.name = name;
+            this.path = path;
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+    }
+
+    static final class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        void add(long nanos, boolean ok) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        void addAll(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.latencies[i], true);
+            }
+            errors += other.errors;
+        }
+
+        int count() {
+            return count;
+        }
+
+        double errorRate() {
+            return count == 0 ? 0 : (double) errors / count;
+        }
+
+        /** Latency at given percentile in milliseconds. */
+        double percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * count) - 1;
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    static final class Report {
+        private final Map<String, Stats> routes;
+        private final long nanos;
+
+        Report(Map<String, Stats> routes, long nanos) {
+            this.routes = routes;
+            this.nanos = nanos;
+        }
+
+        double throughput(String route) {
+            return routes.get(route).count() * 1_000_000_000.0 / nanos;
+        }
+
+        Properties toProperties() {
+            Properties p = new Properties();
+            for (Map.Entry<String, Stats> e : routes.entrySet()) {
+                String r = e.getKey();
+                Stats s = e.getValue();
+                p.setProperty(r + ".throughput", String.format(Locale.ROOT, "%.1f", throughput(r)));
+                p.setProperty(r + ".p50", String.format(Locale.ROOT, "%.3f", s.percentile(50)));
+                p.setProperty(r + ".p99", String.format(Locale.ROOT, "%.3f", s.percentile(99)));
+                p.setProperty(r + ".p999", String.format(Locale.ROOT, "%.3f", s.percentile(99.9)));
+                p.setProperty(r + ".errors", String.format(Locale.ROOT, "%.4f", s.errorRate()));
+            }
+            return p;
+        }
+
+        void store(File file) throws IOException {
+            try (OutputStream os = Files.newOutputStream(file.toPath())) {
+                toProperties().store(os, "Load test results");
+            }
+        }
+
+        /**
+         * Compares with a previously stored report. Throughput may drop and
+         * p99 latency may grow by {@code tolerance}, error rate may grow by
+         * one percentage point.
+         *
+         * @return descriptions of found regressions
+         */
+        List<String> compare(Properties baseline, double tolerance) {
+            List<String> regressions = new ArrayList<>();
+            Properties now = toProperties();
+            for (String r : routes.keySet()) {
+                double was = number(baseline, r + ".throughput");
+                double is = number(now, r + ".throughput");
+                if (was > 0 && is < was * (1 - tolerance)) {
+                    regressions.add(String.format(Locale.ROOT, "%s throughput %.1f req/s, baseline %.1f", r, is, was));
+                }
+                was = number(baseline, r + ".p99");
+                is = number(now, r + ".p99");
+                if (was > 0 && is > was * (1 + tolerance)) {
+                    regressions.add(String.format(Locale.ROOT, "%s p99 latency %.3f ms, baseline %.3f", r, is, was));
+                }
+                was = number(baseline, r + ".errors");
+                is = number(now, r + ".errors");
+                if (is > was + 0.01) {
+                    regressions.add(String.format(Locale.ROOT, "%s error rate %.4f, baseline %.4f", r, is, was));
+                }
+            }
+            return regressions;
+        }
+
+        private static double number(Properties p, String key) {
+            String value = p.getProperty(key);
+            return value == null ? 0 : Double.parseDouble(value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%-8s %10s %9s %9s %9s %8s%n", "route", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors"));
+            for (Map.Entry<String, Stats> e : routes.entrySet()) {
+                Stats s = e.getValue();
+                sb.append(String.format(Locale.ROOT, "%-8s %10.1f %9.3f %9.3f %9.3f %7.2f%%%n",
+                    e.getKey(), throughput(e.getKey()),
+                    s.percentile(50), s.percentile(99), s.percentile(99.9),
+                    s.errorRate() * 100
+                ));
+            }
+            return sb.toString();
+        }
+    }
+}